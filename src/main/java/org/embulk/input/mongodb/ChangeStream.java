@@ -0,0 +1,147 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.conversions.Bson;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Reads change events of the collection from the resume token saved in the ConfigDiff.
+// The resume token of the last event is reported as the next position.
+public class ChangeStream
+        extends EventStream
+{
+    private static final Logger log = LoggerFactory.getLogger(ChangeStream.class);
+
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private BsonDocument resumeToken;
+
+    public ChangeStream(PluginTask task)
+    {
+        super(task);
+        this.resumeToken = task.getResumeToken().isPresent() ? toBson(task.getResumeToken().get()) : null;
+    }
+
+    // The operation time of the server when the transaction starts, so that an empty run still saves a position
+    static Optional<Map<String, Object>> currentOperationTime(MongoDatabase db)
+    {
+        Document result = db.runCommand(new Document("isMaster", 1));
+        Object time = result.get("operationTime");
+        if (!(time instanceof BsonTimestamp)) {
+            log.warn("The server didn't return operationTime. The change stream starts when the task starts.");
+            return Optional.empty();
+        }
+        return Optional.of(toMap((BsonTimestamp) time));
+    }
+
+    static FullDocument getFullDocument(PluginTask task)
+    {
+        switch (task.getFullDocument()) {
+            case "default":
+                return FullDocument.DEFAULT;
+            case "update_lookup":
+                return FullDocument.UPDATE_LOOKUP;
+            default:
+                throw new ConfigException(String.format("Unknown full_document '%s'. Supported full_document are default, update_lookup", task.getFullDocument()));
+        }
+    }
+
+    @Override
+    public <T> void read(MongoClientCache.Lease lease, MongoCollection<?> collection, Codec<T> codec, QueryPlan plan, Consumer<T> consumer)
+    {
+        // `query` and `projection` are applied to change events, not to documents
+        List<Bson> pipeline = new ArrayList<>();
+        if (!plan.getQuery().isEmpty()) {
+            pipeline.add(Aggregates.match(plan.getQuery()));
+        }
+        if (!plan.getProjection().isEmpty()) {
+            pipeline.add(Aggregates.project(plan.getProjection()));
+        }
+
+        ChangeStreamIterable<?> stream = collection.watch(pipeline)
+                .fullDocument(getFullDocument(task))
+                .batchSize(task.getBatchSize())
+                .maxAwaitTime(getAwaitMillis(), TimeUnit.MILLISECONDS);
+        if (resumeToken != null) {
+            log.info("Resuming the change stream after {}", resumeToken.toJson(JSON_SETTINGS));
+            stream.resumeAfter(resumeToken);
+        }
+        else if (task.getStartAtOperationTime().isPresent()) {
+            BsonTimestamp time = toTimestamp("start_at_operation_time", task.getStartAtOperationTime().get());
+            log.info("Starting the change stream at {}", time);
+            stream.startAtOperationTime(time);
+        }
+
+        try (MongoCursor<RawBsonDocument> cursor = stream.withDocumentClass(RawBsonDocument.class).iterator()) {
+            read(cursor, codec, consumer);
+        }
+    }
+
+    @Override
+    protected RawBsonDocument toRecord(RawBsonDocument event)
+    {
+        BsonValue time = event.get("clusterTime");
+        if (time == null || !time.isTimestamp()) {
+            return event;
+        }
+        BsonDocument record = new BsonDocument();
+        for (Map.Entry<String, BsonValue> field : event.entrySet()) {
+            record.put(field.getKey(), field.getKey().equals("clusterTime") ? toClusterTime(time.asTimestamp()) : field.getValue());
+        }
+        return new RawBsonDocument(record, DOCUMENT_CODEC);
+    }
+
+    @Override
+    protected void advance(RawBsonDocument event)
+    {
+        resumeToken = event.getDocument("_id");
+    }
+
+    @Override
+    public void updateTaskReport(TaskReport report)
+    {
+        if (resumeToken != null) {
+            report.set("resume_token", toMap(resumeToken));
+        }
+        else if (task.getStartAtOperationTime().isPresent()) {
+            report.set("start_at_operation_time", task.getStartAtOperationTime().get());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+// Records the _id of the last document emitted by a task in a local file, so that a task which failed
+// in the middle can restart after it. Documents are read in the order of _id while checkpointing.
+public class Checkpoint
+{
+    private static final Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    private final Path path;
+    private final int interval;
+    private final Runnable flush;
+    private long emitted = 0;
+    private BsonValue lastId;
+
+    // The file name is derived from the query and the partition, so that another load doesn't resume from it
+    public Checkpoint(PluginTask task, int taskIndex, Optional<Partition> partition, Runnable flush)
+    {
+        String condition = task.getQuery() + (partition.isPresent() ? partition.get().getFilter() : "");
+        String name = String.format("%s.%08x.%d.json", task.getCollection(), condition.hashCode(), taskIndex);
+        this.path = Paths.get(task.getCheckpointDirectory().get(), name);
+        this.interval = task.getCheckpointInterval();
+        this.flush = flush;
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    // Adds the condition to skip documents emitted before the last failure
+    public Bson resume(Bson query)
+    {
+        if (!Files.exists(path)) {
+            return query;
+        }
+        try {
+            BsonValue id = BsonDocument.parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)).get("_id");
+            log.info("Resuming from the checkpoint {}: _id > {}", path, id);
+            return Filters.and(query, KeyRanges.after("_id", id));
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void emitted(RawBsonDocument document)
+    {
+        emitted++;
+        if (emitted % interval == 0) {
+            lastId = document.get("_id");
+            save();
+        }
+    }
+
+    // Records already handed to the output are flushed before the position is saved
+    private void save()
+    {
+        if (lastId == null) {
+            throw new ConfigException("Documents without _id can't be checkpointed. Don't exclude _id by projection.");
+        }
+        flush.run();
+        try {
+            Files.createDirectories(path.getParent());
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, new BsonDocument("_id", lastId).toJson(JSON_SETTINGS).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        log.debug("Saved the checkpoint {}: _id = {}", path, lastId);
+    }
+
+    // The next run of the task starts from the beginning once the task completes
+    public void complete()
+    {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
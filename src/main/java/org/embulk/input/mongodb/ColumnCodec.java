@@ -0,0 +1,472 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.Decimal128;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.units.ColumnConfig;
+import org.msgpack.value.Value;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Picks the fields configured by `columns` out of the BSON stream, and converts them to the column types.
+// Fields which no column refers to are skipped without being decoded.
+public class ColumnCodec implements Codec<Object[]>
+{
+    private static final int BOOLEAN = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+    private static final int TIMESTAMP = 4;
+    private static final int JSON = 5;
+
+    private final ValueCodec valueCodec;
+    private final UnsupportedValuePolicy policy;
+    private final List<ColumnConfig> columns;
+    private final int[] kinds;
+    private final PathNode root = new PathNode();
+    // Whether the current document is dropped by `on_unsupported_value: drop_document`
+    private boolean dropped;
+
+    public ColumnCodec(PluginTask task, ValueCodec valueCodec)
+    {
+        this.valueCodec = valueCodec;
+        this.policy = UnsupportedValuePolicy.of(task);
+        this.columns = task.getColumns().get().getColumns();
+        this.kinds = new int[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            kinds[i] = kindOf(columns.get(i).getType());
+            PathNode node = root;
+            for (String name : getPath(columns.get(i), task).split("\\.")) {
+                PathNode child = node.children.get(name);
+                if (child == null) {
+                    child = new PathNode();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            if (node.columnIndex >= 0) {
+                throw new ConfigException(String.format("Columns '%s' and '%s' refer to the same path",
+                        columns.get(node.columnIndex).getName(), columns.get(i).getName()));
+            }
+            node.columnIndex = i;
+        }
+        // Top-level fields of `incremental_field` are looked up with the columns
+        List<String> incrementalFields = task.getIncrementalField().orElse(Collections.<String>emptyList());
+        for (int i = 0; i < incrementalFields.size(); i++) {
+            PathNode node = root.children.get(incrementalFields.get(i));
+            if (node == null) {
+                node = new PathNode();
+                root.children.put(incrementalFields.get(i), node);
+            }
+            node.trackedPosition = i;
+        }
+    }
+
+    // The `path` option defaults to the column name, and the column named `id_field_name` reads `_id`
+    static String getPath(ColumnConfig column, PluginTask task)
+    {
+        if (column.getOption().has("path")) {
+            return column.getOption().get(String.class, "path");
+        }
+        if (column.getName().equals(task.getIdFieldName())) {
+            return "_id";
+        }
+        return column.getName();
+    }
+
+    private static int kindOf(Type type)
+    {
+        if (type.equals(Types.BOOLEAN)) {
+            return BOOLEAN;
+        }
+        else if (type.equals(Types.LONG)) {
+            return LONG;
+        }
+        else if (type.equals(Types.DOUBLE)) {
+            return DOUBLE;
+        }
+        else if (type.equals(Types.STRING)) {
+            return STRING;
+        }
+        else if (type.equals(Types.TIMESTAMP)) {
+            return TIMESTAMP;
+        }
+        return JSON;
+    }
+
+    @Override
+    public void encode(final BsonWriter writer, final Object[] value, final EncoderContext encoderContext)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object[] decode(final BsonReader reader, final DecoderContext decoderContext)
+    {
+        Object[] row = new Object[kinds.length];
+        dropped = false;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            PathNode node = root.children.get(name);
+            readField(reader, decoderContext, name, node, row, node == null ? -1 : node.trackedPosition);
+        }
+        reader.readEndDocument();
+        valueCodec.completeDocument(!dropped);
+        // null tells the caller to skip the document
+        return dropped ? null : row;
+    }
+
+    @Override
+    public Class<Object[]> getEncoderClass()
+    {
+        return Object[].class;
+    }
+
+    public void setColumns(PageBuilder pageBuilder, Object[] row)
+    {
+        List<Column> schemaColumns = pageBuilder.getSchema().getColumns();
+        for (int i = 0; i < kinds.length; i++) {
+            Column column = schemaColumns.get(i);
+            Object value = row[i];
+            if (value == null) {
+                pageBuilder.setNull(column);
+                continue;
+            }
+            switch (kinds[i]) {
+                case BOOLEAN:
+                    pageBuilder.setBoolean(column, (Boolean) value);
+                    break;
+                case LONG:
+                    pageBuilder.setLong(column, (Long) value);
+                    break;
+                case DOUBLE:
+                    pageBuilder.setDouble(column, (Double) value);
+                    break;
+                case STRING:
+                    pageBuilder.setString(column, (String) value);
+                    break;
+                case TIMESTAMP:
+                    pageBuilder.setTimestamp(column, (Instant) value);
+                    break;
+                default:
+                    pageBuilder.setJson(column, (Value) value);
+            }
+        }
+    }
+
+    private void readField(BsonReader reader, DecoderContext decoderContext, String name, PathNode node, Object[] row, int trackedPosition)
+    {
+        boolean tracked = trackedPosition >= 0;
+        BsonType type = reader.getCurrentBsonType();
+        boolean leaf = node != null && node.columnIndex >= 0;
+        boolean nested = node != null && !node.children.isEmpty() && (type == BsonType.DOCUMENT || type == BsonType.ARRAY);
+
+        if (!tracked && !(leaf && nested)) {
+            if (leaf) {
+                readColumn(reader, decoderContext, node.columnIndex, row);
+            }
+            else if (nested) {
+                readNested(reader, decoderContext, node, row);
+            }
+            else {
+                reader.skipValue();
+            }
+            return;
+        }
+
+        // The value is used more than once, so it's read again from the mark for each use
+        BsonReaderMark mark = reader.getMark();
+        if (tracked) {
+            valueCodec.trackIncrementalField(trackedPosition, reader, decoderContext);
+        }
+        if (leaf) {
+            if (tracked) {
+                mark.reset();
+            }
+            readColumn(reader, decoderContext, node.columnIndex, row);
+        }
+        if (nested) {
+            if (tracked || leaf) {
+                mark.reset();
+            }
+            readNested(reader, decoderContext, node, row);
+        }
+    }
+
+    private void readNested(BsonReader reader, DecoderContext decoderContext, PathNode node, Object[] row)
+    {
+        if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String name = reader.readName();
+                readField(reader, decoderContext, name, node.children.get(name), row, -1);
+            }
+            reader.readEndDocument();
+        }
+        else {
+            // Elements of arrays are addressed by their indexes like "tags.0"
+            int index = 0;
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String name = Integer.toString(index++);
+                readField(reader, decoderContext, name, node.children.get(name), row, -1);
+            }
+            reader.readEndArray();
+        }
+    }
+
+    private void readColumn(BsonReader reader, DecoderContext decoderContext, int index, Object[] row)
+    {
+        BsonType type = reader.getCurrentBsonType();
+        if (type == BsonType.NULL) {
+            reader.readNull();
+            row[index] = null;
+            return;
+        }
+        try {
+            switch (kinds[index]) {
+                case BOOLEAN:
+                    row[index] = readBoolean(reader, type);
+                    break;
+                case LONG:
+                    row[index] = readLong(reader, type);
+                    break;
+                case DOUBLE:
+                    row[index] = readDouble(reader, type);
+                    break;
+                case STRING:
+                    row[index] = readString(reader, decoderContext, type);
+                    break;
+                case TIMESTAMP:
+                    row[index] = readTimestamp(reader, type);
+                    break;
+                default:
+                    row[index] = readJson(reader, decoderContext);
+            }
+        }
+        catch (DataException ex) {
+            if (policy == UnsupportedValuePolicy.FAIL) {
+                throw ex;
+            }
+            invalid(row, index, type);
+            return;
+        }
+        if (row[index] == null) {
+            // The value, or an element of it, is of an unsupported type
+            if (policy == UnsupportedValuePolicy.FAIL) {
+                throw new ValueCodec.UnknownTypeFoundException(String.format("Unsupported type %s of column '%s'",
+                        valueCodec.getUnsupportedType(), columns.get(index).getName()));
+            }
+            invalid(row, index, valueCodec.getUnsupportedType());
+        }
+    }
+
+    // Applies `on_unsupported_value` to the column of which value can't be read or converted
+    private void invalid(Object[] row, int index, BsonType type)
+    {
+        valueCodec.countUnsupportedValue(columns.get(index).getName(), type);
+        if (policy == UnsupportedValuePolicy.DROP_DOCUMENT) {
+            dropped = true;
+        }
+        row[index] = null;
+    }
+
+    private Boolean readBoolean(BsonReader reader, BsonType type)
+    {
+        switch (type) {
+            case BOOLEAN:
+                return reader.readBoolean();
+            case INT32:
+                return reader.readInt32() != 0;
+            case INT64:
+                return reader.readInt64() != 0;
+            case DOUBLE:
+                return reader.readDouble() != 0;
+            case STRING:
+                String value = reader.readString();
+                if (value.equalsIgnoreCase("true")) {
+                    return true;
+                }
+                else if (value.equalsIgnoreCase("false")) {
+                    return false;
+                }
+                throw new DataException(String.format("'%s' isn't a boolean", value));
+            default:
+                throw unsupported(reader, type, "boolean");
+        }
+    }
+
+    private Long readLong(BsonReader reader, BsonType type)
+    {
+        switch (type) {
+            case INT32:
+                return (long) reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                double number = reader.readDouble();
+                // A cast would turn NaN into 0, and clamp infinities and values out of the range
+                if (Double.isNaN(number) || number < -0x1p63 || number >= 0x1p63) {
+                    throw new DataException(String.format("Double %s can't be converted to long", number));
+                }
+                return (long) number;
+            case DECIMAL128:
+                Decimal128 decimal = reader.readDecimal128();
+                if (decimal.isNaN() || decimal.isInfinite()) {
+                    throw new DataException(String.format("Decimal128 %s can't be converted to long", decimal));
+                }
+                // bigDecimalValue() throws for negative zero
+                try {
+                    return new BigDecimal(decimal.toString()).setScale(0, RoundingMode.DOWN).longValueExact();
+                }
+                catch (ArithmeticException ex) {
+                    throw new DataException(String.format("Decimal128 %s can't be converted to long", decimal));
+                }
+            case BOOLEAN:
+                return reader.readBoolean() ? 1L : 0L;
+            case DATE_TIME:
+                return reader.readDateTime();
+            case TIMESTAMP:
+                return (long) reader.readTimestamp().getTime();
+            case STRING:
+                String value = reader.readString();
+                try {
+                    return Long.parseLong(value);
+                }
+                catch (NumberFormatException ex) {
+                    throw new DataException(String.format("'%s' isn't a long", value));
+                }
+            default:
+                throw unsupported(reader, type, "long");
+        }
+    }
+
+    private Double readDouble(BsonReader reader, BsonType type)
+    {
+        switch (type) {
+            case INT32:
+                return (double) reader.readInt32();
+            case INT64:
+                return (double) reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case DECIMAL128:
+                // Also parses NaN, Infinity and negative zero, which bigDecimalValue() throws for
+                return Double.parseDouble(reader.readDecimal128().toString());
+            case BOOLEAN:
+                return reader.readBoolean() ? 1.0 : 0.0;
+            case STRING:
+                String value = reader.readString();
+                try {
+                    return Double.parseDouble(value);
+                }
+                catch (NumberFormatException ex) {
+                    throw new DataException(String.format("'%s' isn't a double", value));
+                }
+            default:
+                throw unsupported(reader, type, "double");
+        }
+    }
+
+    private String readString(BsonReader reader, DecoderContext decoderContext, BsonType type)
+    {
+        switch (type) {
+            case STRING:
+                return reader.readString();
+            case SYMBOL:
+                return reader.readSymbol();
+            case OBJECT_ID:
+                return reader.readObjectId().toHexString();
+            case DATE_TIME:
+                return valueCodec.formatDateTime(reader.readDateTime());
+            default:
+                // Documents and arrays are formatted as JSON, and the others as they are formatted in JSON records
+                Value value = readJson(reader, decoderContext);
+                if (value == null) {
+                    return null;
+                }
+                return value.isStringValue() ? value.asStringValue().asString() : value.toJson();
+        }
+    }
+
+    private Instant readTimestamp(BsonReader reader, BsonType type)
+    {
+        switch (type) {
+            case DATE_TIME:
+                return Instant.ofEpochMilli(reader.readDateTime());
+            case TIMESTAMP:
+                return Instant.ofEpochSecond(reader.readTimestamp().getTime());
+            case OBJECT_ID:
+                return Instant.ofEpochSecond(reader.readObjectId().getTimestamp());
+            case STRING:
+                String value = reader.readString();
+                try {
+                    return Instant.parse(value);
+                }
+                catch (DateTimeParseException ex) {
+                    throw new DataException(String.format("'%s' isn't an ISO 8601 timestamp", value));
+                }
+            default:
+                throw unsupported(reader, type, "timestamp");
+        }
+    }
+
+    // Returns null if the value, or an element of it, is of an unsupported type
+    private Value readJson(BsonReader reader, DecoderContext decoderContext)
+    {
+        Value value = valueCodec.decodeValue(reader, decoderContext);
+        if (valueCodec.isDropped()) {
+            // A field of a nested document is unsupported with `on_unsupported_value: drop_document`
+            dropped = true;
+        }
+        return value;
+    }
+
+    private static DataException unsupported(BsonReader reader, BsonType type, String columnType)
+    {
+        reader.skipValue();
+        return new DataException(String.format("%s can't be converted to %s", type, columnType));
+    }
+
+    private static class PathNode
+    {
+        private final Map<String, PathNode> children = new HashMap<>();
+        private int columnIndex = -1;
+        private int trackedPosition = -1;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+// Reads raw documents from a cursor on a background thread, ahead of the task thread which builds pages.
+//
+// Documents are grouped into batches, and each batch is decoded by a FutureTask. The task thread takes
+// the batches from a queue in the order of the cursor, and decodes a batch by itself if no decoder thread
+// has started it yet. Without `preserve_order`, decoder threads queue batches as soon as they are decoded instead.
+// The number of batches read ahead and not consumed yet is bounded by `prefetch_batches` + `decode_threads`.
+public class DocumentPipeline<T>
+        implements AutoCloseable
+{
+    private final MongoCursor<RawBsonDocument> cursor;
+    private final Codec<T> codec;
+    private final int batchSize;
+    private final boolean ordered;
+    private final Semaphore permits;
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final List<DecoderThread> decoders = new ArrayList<>();
+    private final BlockingQueue<Batch> decodeQueue = new LinkedBlockingQueue<>();
+    private final Thread producer;
+    private final Batch end = new Batch(Collections.<RawBsonDocument>emptyList());
+
+    // Batches being decoded in the unordered mode, and whether the cursor is exhausted
+    private int pending = 0;
+    private boolean exhausted = false;
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    public DocumentPipeline(MongoCursor<RawBsonDocument> cursor, Codec<T> codec, CodecFactory<T> workerCodecs,
+            int batchSize, int prefetchBatches, int decodeThreads, boolean ordered)
+    {
+        this.cursor = cursor;
+        this.codec = codec;
+        this.batchSize = batchSize;
+        this.ordered = ordered || decodeThreads <= 1;
+        this.permits = new Semaphore(prefetchBatches + decodeThreads);
+        if (decodeThreads > 1) {
+            for (int i = 0; i < decodeThreads; i++) {
+                DecoderThread decoder = new DecoderThread(workerCodecs.create(), i);
+                decoders.add(decoder);
+                decoder.start();
+            }
+        }
+        this.producer = new Thread(this::produce, "embulk-input-mongodb-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    public interface CodecFactory<T>
+    {
+        Codec<T> create();
+    }
+
+    // Passes each document with its raw BSON, in the order of batches
+    public void forEach(BiConsumer<RawBsonDocument, T> consumer)
+    {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+            if (batch == end) {
+                if (failure != null) {
+                    throwUnchecked(failure);
+                }
+                return;
+            }
+            // The task thread decodes the batch by itself if no decoder thread has started it
+            batch.run();
+            List<T> documents;
+            try {
+                documents = batch.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+            catch (ExecutionException ex) {
+                throwUnchecked(ex.getCause());
+                return;
+            }
+            permits.release();
+            for (int i = 0; i < documents.size(); i++) {
+                consumer.accept(batch.documents.get(i), documents.get(i));
+            }
+        }
+    }
+
+    private static void throwUnchecked(Throwable ex)
+    {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new RuntimeException(ex);
+    }
+
+    private void produce()
+    {
+        try {
+            List<RawBsonDocument> batch = new ArrayList<>(batchSize);
+            while (!closed && cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() >= batchSize) {
+                    submit(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty() && !closed) {
+                submit(batch);
+            }
+            finish();
+        }
+        catch (InterruptedException ex) {
+            // closed by the task thread
+        }
+        catch (Throwable ex) {
+            failure = ex;
+            queue.add(end);
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private void submit(final List<RawBsonDocument> batch) throws InterruptedException
+    {
+        permits.acquire();
+        if (decoders.isEmpty()) {
+            queue.add(new Batch(batch));
+        }
+        else if (ordered) {
+            Batch task = new Batch(batch);
+            queue.add(task);
+            decodeQueue.add(task);
+        }
+        else {
+            synchronized (this) {
+                pending++;
+            }
+            decodeQueue.add(new Batch(batch) {
+                @Override
+                protected void done()
+                {
+                    queue.add(this);
+                    synchronized (DocumentPipeline.this) {
+                        pending--;
+                        if (exhausted && pending == 0) {
+                            queue.add(end);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish()
+    {
+        synchronized (this) {
+            exhausted = true;
+            if (ordered || pending == 0) {
+                queue.add(end);
+            }
+        }
+    }
+
+    private static <T> List<T> decode(List<RawBsonDocument> batch, Codec<T> codec)
+    {
+        List<T> documents = new ArrayList<>(batch.size());
+        for (RawBsonDocument document : batch) {
+            documents.add(document.decode(codec));
+        }
+        return documents;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        producer.interrupt();
+        for (DecoderThread decoder : decoders) {
+            decoder.interrupt();
+        }
+        queue.clear();
+        decodeQueue.clear();
+    }
+
+    // Decodes with the codec of the thread which runs it, either a decoder thread or the task thread
+    private class Batch
+            extends FutureTask<List<T>>
+    {
+        private final List<RawBsonDocument> documents;
+
+        Batch(List<RawBsonDocument> documents)
+        {
+            super(() -> decode(documents, currentCodec()));
+            this.documents = documents;
+        }
+    }
+
+    private Codec<T> currentCodec()
+    {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof DocumentPipeline.DecoderThread) {
+            @SuppressWarnings("unchecked")
+            DecoderThread decoder = (DecoderThread) thread;
+            return decoder.codec;
+        }
+        return codec;
+    }
+
+    private class DecoderThread
+            extends Thread
+    {
+        private final Codec<T> codec;
+
+        DecoderThread(Codec<T> codec, int index)
+        {
+            super("embulk-input-mongodb-decoder-" + index);
+            this.codec = codec;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (!closed) {
+                    decodeQueue.take().run();
+                }
+            }
+            catch (InterruptedException ex) {
+                // closed by the task thread
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonReader;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+
+// Wraps each document of the snapshot of `mode: snapshot_change_stream` in the shape of a change event,
+// so that snapshot records and change events can be merged by `documentKey` in the order of `clusterTime`.
+public class EnvelopeCodec<T>
+        implements Codec<T>
+{
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+    private static final BsonString OPERATION_TYPE = new BsonString("snapshot");
+
+    private final Codec<T> codec;
+    private final BsonInt64 clusterTime;
+
+    public EnvelopeCodec(Codec<T> codec, BsonTimestamp snapshotTime)
+    {
+        this.codec = codec;
+        this.clusterTime = EventStream.toClusterTime(snapshotTime);
+    }
+
+    @Override
+    public T decode(final BsonReader reader, final DecoderContext decoderContext)
+    {
+        RawBsonDocument document = RAW_CODEC.decode(reader, decoderContext);
+        BsonValue id = document.get("_id");
+        BsonDocument envelope = new BsonDocument("operationType", OPERATION_TYPE)
+                .append("clusterTime", clusterTime)
+                .append("documentKey", new BsonDocument("_id", id == null ? BsonNull.VALUE : id))
+                .append("fullDocument", document);
+        return new RawBsonDocument(envelope, DOCUMENT_CODEC).decode(codec);
+    }
+
+    @Override
+    public void encode(final BsonWriter writer, final T value, final EncoderContext encoderContext)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Class<T> getEncoderClass()
+    {
+        return codec.getEncoderClass();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Reads events of a stream on the task thread, until the stream is idle or one of the bounds is reached.
+// The position after the last event is reported to be saved in the ConfigDiff.
+public abstract class EventStream
+{
+    private static final Logger log = LoggerFactory.getLogger(EventStream.class);
+
+    protected static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    // Upper bound of the wait of each getMore for new events
+    private static final long MAX_AWAIT_MILLIS = 1000;
+
+    protected final PluginTask task;
+    private long emitted = 0;
+
+    protected EventStream(PluginTask task)
+    {
+        this.task = task;
+    }
+
+    public static EventStream create(PluginTask task)
+    {
+        switch (task.getMode()) {
+            case CHANGE_STREAM:
+            case SNAPSHOT_CHANGE_STREAM:
+                return new ChangeStream(task);
+            case OPLOG:
+                return new OplogStream(task);
+            default:
+                throw new IllegalArgumentException(task.getMode().toString());
+        }
+    }
+
+    public abstract <T> void read(MongoClientCache.Lease lease, MongoCollection<?> collection, Codec<T> codec, QueryPlan plan, Consumer<T> consumer);
+
+    // Reports the position to start the next run from
+    public abstract void updateTaskReport(TaskReport report);
+
+    // Converts an event read from the cursor to a record, or null to skip it
+    protected abstract RawBsonDocument toRecord(RawBsonDocument event);
+
+    // Converts an event to its records. An oplog entry of a transaction holds more than one change.
+    protected List<RawBsonDocument> toRecords(RawBsonDocument event)
+    {
+        RawBsonDocument record = toRecord(event);
+        return record == null ? Collections.<RawBsonDocument>emptyList() : Collections.singletonList(record);
+    }
+
+    // Moves the position after the event
+    protected abstract void advance(RawBsonDocument event);
+
+    protected long getAwaitMillis()
+    {
+        return Math.min(MAX_AWAIT_MILLIS, TimeUnit.SECONDS.toMillis(task.getStreamIdleTimeoutSeconds()));
+    }
+
+    protected <T> void read(MongoCursor<RawBsonDocument> cursor, Codec<T> codec, Consumer<T> consumer)
+    {
+        long idleMillis = TimeUnit.SECONDS.toMillis(task.getStreamIdleTimeoutSeconds());
+        long started = System.currentTimeMillis();
+        long lastEvent = started;
+        while (!task.getStreamMaxRecords().isPresent() || emitted < task.getStreamMaxRecords().get()) {
+            if (task.getStreamMaxDurationSeconds().isPresent()
+                    && System.currentTimeMillis() - started >= TimeUnit.SECONDS.toMillis(task.getStreamMaxDurationSeconds().get())) {
+                log.info("Reached stream_max_duration_seconds");
+                break;
+            }
+            RawBsonDocument event = cursor.tryNext();
+            if (event == null) {
+                if (System.currentTimeMillis() - lastEvent >= idleMillis) {
+                    break;
+                }
+                continue;
+            }
+            for (RawBsonDocument record : toRecords(event)) {
+                consumer.accept(record.decode(codec));
+                emitted++;
+            }
+            advance(event);
+            lastEvent = System.currentTimeMillis();
+        }
+        log.info("Read {} {} events", emitted, task.getMode());
+    }
+
+    // Positions are saved in extended JSON, as `last_record` is
+    static Map<String, Object> toMap(BsonDocument document)
+    {
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = new ObjectMapper().readValue(document.toJson(JSON_SETTINGS), Map.class);
+            return map;
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static BsonDocument toBson(Map<String, Object> map)
+    {
+        try {
+            return BsonDocument.parse(new ObjectMapper().writeValueAsString(map));
+        }
+        catch (IOException ex) {
+            throw new ConfigException(ex);
+        }
+    }
+
+    // clusterTime is written as seconds << 32 | increment regardless of `type_mapping`, so that events of the same second keep their order
+    static BsonInt64 toClusterTime(BsonTimestamp time)
+    {
+        return new BsonInt64(time.getValue());
+    }
+
+    static Map<String, Object> toMap(BsonTimestamp time)
+    {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("t", time.getTime());
+        value.put("i", time.getInc());
+        return Collections.<String, Object>singletonMap("$timestamp", value);
+    }
+
+    static BsonTimestamp toTimestamp(String name, Map<String, Object> map)
+    {
+        // {"$timestamp": ...} is parsed as a value, not as a document
+        BsonDocument document = toBson(Collections.<String, Object>singletonMap("value", map));
+        if (!document.isTimestamp("value")) {
+            throw new ConfigException(String.format("Invalid %s %s. Use the form {\"$timestamp\": {\"t\": <seconds>, \"i\": <increment>}}", name, map));
+        }
+        return document.getTimestamp("value");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import java.time.LocalDate;
+
+// Formats epoch milliseconds as "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" in UTC.
+// The "yyyy-MM-dd'T'" prefix of the last day is cached, since dates of a collection are often close to each other,
+// and the time of the day is written digit by digit. It's thread-safe, unlike SimpleDateFormat.
+public final class IsoDateFormatter
+{
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static volatile Day lastDay = new Day(0);
+
+    private IsoDateFormatter()
+    {
+    }
+
+    public static String format(long epochMillis)
+    {
+        Day day = lastDay;
+        if (epochMillis < day.start || epochMillis >= day.start + MILLIS_PER_DAY) {
+            day = new Day(Math.floorDiv(epochMillis, MILLIS_PER_DAY));
+            lastDay = day;
+        }
+
+        int millis = (int) (epochMillis - day.start);
+        int length = day.prefix.length;
+        char[] chars = new char[length + 13];
+        System.arraycopy(day.prefix, 0, chars, 0, length);
+        writeDigits(chars, length, millis / 3600000, 2);
+        chars[length + 2] = ':';
+        writeDigits(chars, length + 3, millis / 60000 % 60, 2);
+        chars[length + 5] = ':';
+        writeDigits(chars, length + 6, millis / 1000 % 60, 2);
+        chars[length + 8] = '.';
+        writeDigits(chars, length + 9, millis % 1000, 3);
+        chars[length + 12] = 'Z';
+        return new String(chars);
+    }
+
+    private static void writeDigits(char[] chars, int offset, int value, int digits)
+    {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static final class Day
+    {
+        private final long start;
+        private final char[] prefix;
+
+        private Day(long epochDay)
+        {
+            this.start = epochDay * MILLIS_PER_DAY;
+            this.prefix = (LocalDate.ofEpochDay(epochDay).toString() + "T").toCharArray();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+
+import java.util.Arrays;
+
+// Conditions on ranges of a field in the sort order of BSON values across types.
+// $gt, $gte and $lt only match values in the same type bracket as the bound, so values of the types
+// which sort after or between the bounds are matched by $type instead of being silently skipped.
+// Undefined, symbol, DBPointer and JavaScript values aren't matched by $type: they're deprecated or rarely keys,
+// and not every server implementing the protocol knows them.
+// https://docs.mongodb.com/manual/reference/bson-type-comparison-order/
+public final class KeyRanges
+{
+    // Types matched by $type, in the sort order of MongoDB
+    private static final BsonType[] TYPES = {
+        BsonType.MIN_KEY, BsonType.NULL,
+        BsonType.INT32, BsonType.INT64, BsonType.DOUBLE, BsonType.DECIMAL128,
+        BsonType.STRING, BsonType.DOCUMENT, BsonType.ARRAY, BsonType.BINARY, BsonType.OBJECT_ID,
+        BsonType.BOOLEAN, BsonType.DATE_TIME, BsonType.TIMESTAMP, BsonType.REGULAR_EXPRESSION, BsonType.MAX_KEY,
+    };
+
+    private KeyRanges()
+    {
+    }
+
+    // Values greater than the value, such as the documents after the last _id read
+    public static BsonDocument after(String field, BsonValue value)
+    {
+        return from(field, "$gt", value);
+    }
+
+    // Values greater than or equal to the value
+    public static BsonDocument atOrAfter(String field, BsonValue value)
+    {
+        return from(field, "$gte", value);
+    }
+
+    // Values less than the value, including missing fields
+    public static BsonDocument before(String field, BsonValue value)
+    {
+        return new BsonDocument("$nor", new BsonArray(Arrays.<BsonValue>asList(atOrAfter(field, value))));
+    }
+
+    // Values greater than or equal to the lower bound, and less than the upper bound
+    public static BsonDocument between(String field, BsonValue lower, BsonValue upper)
+    {
+        if (rank(lower.getBsonType()) == rank(upper.getBsonType())) {
+            return new BsonDocument(field, new BsonDocument("$gte", lower).append("$lt", upper));
+        }
+        BsonArray conditions = new BsonArray();
+        conditions.add(new BsonDocument(field, new BsonDocument("$gte", lower)));
+        BsonArray types = typesBetween(rank(lower.getBsonType()), rank(upper.getBsonType()));
+        if (!types.isEmpty()) {
+            conditions.add(new BsonDocument(field, new BsonDocument("$type", types)));
+        }
+        conditions.add(new BsonDocument(field, new BsonDocument("$lt", upper)));
+        return new BsonDocument("$or", conditions);
+    }
+
+    private static BsonDocument from(String field, String operator, BsonValue value)
+    {
+        BsonDocument condition = new BsonDocument(field, new BsonDocument(operator, value));
+        BsonArray types = typesBetween(rank(value.getBsonType()), Integer.MAX_VALUE);
+        if (types.isEmpty()) {
+            return condition;
+        }
+        return new BsonDocument("$or", new BsonArray(Arrays.<BsonValue>asList(
+                condition, new BsonDocument(field, new BsonDocument("$type", types)))));
+    }
+
+    // $type numbers of the types sorting strictly between the ranks
+    private static BsonArray typesBetween(int lower, int upper)
+    {
+        BsonArray types = new BsonArray();
+        for (BsonType type : TYPES) {
+            int rank = rank(type);
+            if (rank > lower && rank < upper) {
+                types.add(new BsonInt32(typeNumber(type)));
+            }
+        }
+        return types;
+    }
+
+    // Whether values of the type are matched by $type, so that they can be bounds of ranges
+    static boolean isRangeType(BsonType type)
+    {
+        return Arrays.asList(TYPES).contains(type);
+    }
+
+    // Rank in the sort order. Types of the same rank are compared by value.
+    static int rank(BsonType type)
+    {
+        switch (type) {
+            case MIN_KEY:
+                return 0;
+            case UNDEFINED:
+                return 1;
+            case NULL:
+                return 2;
+            case INT32:
+            case INT64:
+            case DOUBLE:
+            case DECIMAL128:
+                return 3;
+            case SYMBOL:
+            case STRING:
+                return 4;
+            case DOCUMENT:
+                return 5;
+            case ARRAY:
+                return 6;
+            case BINARY:
+                return 7;
+            case OBJECT_ID:
+                return 8;
+            case BOOLEAN:
+                return 9;
+            case DATE_TIME:
+                return 10;
+            case TIMESTAMP:
+                return 11;
+            case REGULAR_EXPRESSION:
+                return 12;
+            case DB_POINTER:
+                return 13;
+            case JAVASCRIPT:
+                return 14;
+            case JAVASCRIPT_WITH_SCOPE:
+                return 15;
+            case MAX_KEY:
+                return 16;
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    // The type bytes of MinKey and MaxKey are -1 and 127 in $type
+    private static int typeNumber(BsonType type)
+    {
+        return (byte) type.getValue();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Shares MongoClient instances between the transaction and the tasks running in the same JVM.
+// Clients are keyed by their connection settings, and closed when the last lease is released.
+public class MongoClientCache
+{
+    private static final Logger log = LoggerFactory.getLogger(MongoClientCache.class);
+
+    private static final Map<String, Entry> clients = new HashMap<>();
+
+    private MongoClientCache()
+    {
+    }
+
+    public interface ClientFactory
+    {
+        MongoClient create() throws UnknownHostException;
+    }
+
+    public static synchronized Lease acquire(String key, String database, ClientFactory factory) throws UnknownHostException
+    {
+        Entry entry = clients.get(key);
+        if (entry == null) {
+            entry = new Entry(factory.create());
+            clients.put(key, entry);
+            log.debug("Created a new MongoClient");
+        }
+        entry.references++;
+        return new Lease(key, entry, database);
+    }
+
+    private static synchronized void release(String key, Entry entry)
+    {
+        entry.references--;
+        if (entry.references == 0) {
+            clients.remove(key);
+            entry.client.close();
+            log.debug("Closed MongoClient");
+        }
+    }
+
+    static synchronized int size()
+    {
+        return clients.size();
+    }
+
+    private static class Entry
+    {
+        private final MongoClient client;
+        private int references;
+
+        private Entry(MongoClient client)
+        {
+            this.client = client;
+        }
+    }
+
+    public static class Lease
+            implements AutoCloseable
+    {
+        private final String key;
+        private final Entry entry;
+        private final String database;
+        private boolean released;
+
+        private Lease(String key, Entry entry, String database)
+        {
+            this.key = key;
+            this.entry = entry;
+            this.database = database;
+        }
+
+        public MongoClient getClient()
+        {
+            return entry.client;
+        }
+
+        public MongoDatabase getDatabase()
+        {
+            return entry.client.getDatabase(database);
+        }
+
+        @Override
+        public void close()
+        {
+            if (!released) {
+                released = true;
+                release(key, entry);
+            }
+        }
+    }
+}
@@ -17,17 +17,38 @@
 package org.embulk.input.mongodb;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoCursorNotFoundException;
 import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoQueryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
 import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
@@ -62,11 +83,18 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class MongodbInputPlugin
         implements InputPlugin
@@ -75,6 +103,17 @@ public class MongodbInputPlugin
 
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
 
+    // HostUnreachable, HostNotFound, NetworkTimeout, ShutdownInProgress, PrimarySteppedDown, SocketException,
+    // NotMaster, InterruptedAtShutdown, InterruptedDueToReplStateChange, NotMasterNoSlaveOk, NotMasterOrSecondary
+    private static final List<Integer> RETRYABLE_ERROR_CODES = Arrays.asList(6, 7, 89, 91, 189, 9001, 10107, 11600, 11602, 13435, 13436);
+
+    // The smallest max_staleness_seconds accepted by servers
+    private static final long MIN_MAX_STALENESS_SECONDS = 90;
+
+    // Stages that transform each document independently of the others
+    private static final List<String> PARTITIONABLE_STAGES = Arrays.asList(
+            "$match", "$project", "$addFields", "$set", "$unset", "$replaceRoot", "$replaceWith", "$redact", "$unwind", "$lookup");
+
     @Override
     public ConfigDiff transaction(ConfigSource config,
             InputPlugin.Control control)
@@ -108,28 +147,251 @@ public class MongodbInputPlugin
             if (!task.getQuery().equals("{}")) {
                 throw new ConfigException("both of query and aggregation can't be used together");
             }
+            if (task.getMin().isPresent() || task.getMax().isPresent() || task.getNoCursorTimeout() || task.getReturnKey() || task.getShowRecordId()) {
+                throw new ConfigException("min, max, no_cursor_timeout, return_key and show_record_id can't be used with aggregation");
+            }
+        }
+
+        if (PartitionPlanner.isEnabled(task)) {
+            if (task.getIncrementalField().isPresent()) {
+                throw new ConfigException("both of incremental_load and partition_count can't be used together");
+            }
+            if (task.getLimit().isPresent()) {
+                throw new ConfigException("both of limit and partition_count can't be used together");
+            }
+            if (task.getSkip().isPresent()) {
+                throw new ConfigException("both of skip and partition_count can't be used together");
+            }
+            if (task.getDocumentsPerPartition().orElse(1L) < 1 || task.getBytesPerPartition().orElse(1L) < 1) {
+                throw new ConfigException("documents_per_partition and bytes_per_partition must be positive");
+            }
+        }
+
+        if (task.getMode() == ReadMode.SNAPSHOT_CHANGE_STREAM) {
+            validateSnapshotMode(task);
+        }
+        else if (task.getMode() != ReadMode.QUERY) {
+            validateStreamMode(task);
+        }
+
+        if (task.getMaxTimeMs().orElse(1L) < 1) {
+            throw new ConfigException("max_time_ms must be positive");
+        }
+        if ((task.getMin().isPresent() || task.getMax().isPresent()) && !task.getHint().isPresent()) {
+            // The bounds are keys of an index, which the server can't guess since MongoDB 4.2
+            throw new ConfigException("min and max require hint");
+        }
+        getReadConcern(task);
+        TypeMapping.resolve(task);
+        getReadPreference(task);
+        if (task.getSpreadPartitions()) {
+            if (task.getConnectToShards()) {
+                throw new ConfigException("both of connect_to_shards and spread_partitions can't be used together");
+            }
+            if (!task.getReadPreferenceTags().isEmpty()) {
+                // Tasks are connected to members directly, without server selection by tags
+                throw new ConfigException("both of read_preference_tags and spread_partitions can't be used together");
+            }
+        }
+
+        if (task.getDecodeThreads() > 1 && task.getIncrementalField().isPresent()) {
+            // The last record has to be tracked in the order of documents
+            throw new ConfigException("both of decode_threads and incremental_load can't be used together");
+        }
+
+        if (task.getCheckpointDirectory().isPresent() || task.getCursorRetryLimit() > 0) {
+            String option = task.getCheckpointDirectory().isPresent() ? "checkpoint_directory" : "cursor_retry_limit";
+            if (task.getAggregation().isPresent()) {
+                throw new ConfigException(String.format("both of aggregation and %s can't be used together", option));
+            }
+            if (task.getIncrementalField().isPresent()) {
+                throw new ConfigException(String.format("both of incremental_load and %s can't be used together", option));
+            }
+            if (task.getLimit().isPresent() || task.getSkip().isPresent()) {
+                throw new ConfigException(String.format("both of limit or skip and %s can't be used together", option));
+            }
+            if (!task.getPreserveOrder()) {
+                throw new ConfigException(String.format("%s requires preserve_order: true", option));
+            }
+            if (!task.getSort().equals("{}")) {
+                throw new ConfigException(String.format("both of sort and %s can't be used together", option));
+            }
+            if (task.getReturnKey()) {
+                throw new ConfigException(String.format("both of return_key and %s can't be used together", option));
+            }
+            // Documents are read in the order of _id to resume after the last emitted document
+            task.setSort("{\"_id\": 1}");
         }
 
         Map<String, String> newCondition = buildIncrementalCondition(task);
         task.setQuery(newCondition.get("query"));
         task.setSort(newCondition.get("sort"));
 
-        validateJsonField("projection", task.getProjection());
-        validateJsonField("query", task.getQuery());
-        validateJsonField("sort", task.getSort());
+        BsonDocument projection = validateJsonField("projection", task.getProjection());
+        BsonDocument query = validateJsonField("query", task.getQuery());
+        BsonDocument sort = validateJsonField("sort", task.getSort());
+        Optional<BsonDocument> hint = Optional.empty();
+        if (task.getHint().isPresent()) {
+            hint = Optional.of(validateJsonField("hint", task.getHint().get()));
+        }
+        Optional<BsonDocument> min = Optional.empty();
+        if (task.getMin().isPresent()) {
+            min = Optional.of(validateJsonField("min", task.getMin().get()));
+        }
+        Optional<BsonDocument> max = Optional.empty();
+        if (task.getMax().isPresent()) {
+            max = Optional.of(validateJsonField("max", task.getMax().get()));
+        }
+        Optional<List<BsonDocument>> pipeline = Optional.empty();
         if (task.getAggregation().isPresent()) {
-            validateJsonField("aggrigation", task.getAggregation().get());
+            pipeline = Optional.of(validatePipeline(task.getAggregation().get()));
+            if (PartitionPlanner.isEnabled(task)) {
+                validatePartitionedPipeline(pipeline.get());
+            }
         }
 
-        // Connect once to throw ConfigException in earlier stage of excecution
+        // Connect once to throw ConfigException in earlier stage of excecution.
+        // The client is kept open until the tasks finish so that tasks in this JVM can share it.
+        MongoClientCache.Lease lease;
         try {
-            connect(task);
+            lease = connect(task, Optional.<String>empty());
         }
         catch (UnknownHostException | MongoException ex) {
             throw new ConfigException(ex);
         }
-        Schema schema = Schema.builder().add(task.getJsonColumnName(), Types.JSON).build();
-        return resume(task.toTaskSource(), schema, 1, control);
+        try {
+            try {
+                checkCollection(lease.getDatabase(), task.getCollection());
+                if (task.getMode() == ReadMode.CHANGE_STREAM && !task.getResumeToken().isPresent() && !task.getStartAtOperationTime().isPresent()) {
+                    task.setStartAtOperationTime(ChangeStream.currentOperationTime(lease.getDatabase()));
+                }
+                if (task.getMode() == ReadMode.SNAPSHOT_CHANGE_STREAM) {
+                    // Changes made while the snapshot is read are replayed from this time by the catch-up task
+                    task.setStartAtOperationTime(ChangeStream.currentOperationTime(lease.getDatabase()));
+                    if (!task.getStartAtOperationTime().isPresent()) {
+                        throw new ConfigException("mode: snapshot_change_stream requires a replica set or a sharded cluster of MongoDB 4.0 or later");
+                    }
+                }
+                if (task.getMode() == ReadMode.OPLOG && !task.getOplogTimestamp().isPresent()) {
+                    task.setOplogTimestamp(Optional.of(OplogStream.latestTimestamp(lease.getClient())));
+                }
+                task.setReadHosts(task.getSpreadPartitions() ? listSecondaries(lease.getClient()) : Collections.<String>emptyList());
+            }
+            catch (MongoException ex) {
+                throw new ConfigException(ex);
+            }
+            try {
+                PartitionPlanner planner = new PartitionPlanner(task, lease.getDatabase(), lease.getClient().getDatabase("config"));
+                if (task.getCollectStats()) {
+                    collectStats(planner);
+                }
+                task.setPartitions(planner.plan());
+            }
+            catch (MongoException ex) {
+                throw new ConfigException(ex);
+            }
+            // Tasks read the parsed plan instead of parsing JSON options by themselves
+            task.setPlan(QueryPlan.build(query, projection, sort, hint, min, max, pipeline, task.getPartitions()).encode());
+            int taskCount = Math.max(1, task.getPartitions().size());
+            if (task.getMode() == ReadMode.SNAPSHOT_CHANGE_STREAM) {
+                taskCount++;
+            }
+            Schema schema = buildSchema(task);
+            return resume(task.toTaskSource(), schema, taskCount, control);
+        }
+        finally {
+            lease.close();
+        }
+    }
+
+    // Change events are read by a single task in the order of the stream
+    private void validateStreamMode(PluginTask task)
+    {
+        List<String> options = new ArrayList<>();
+        if (task.getMode() == ReadMode.OPLOG && (!task.getQuery().equals("{}") || !task.getProjection().equals("{}"))) {
+            // Oplog entries don't have the shape of change events to filter
+            options.add("query or projection");
+        }
+        if (task.getAggregation().isPresent()) {
+            options.add("aggregation");
+        }
+        if (!task.getSort().equals("{}")) {
+            options.add("sort");
+        }
+        if (task.getLimit().isPresent() || task.getSkip().isPresent()) {
+            options.add("limit or skip");
+        }
+        if (task.getIncrementalField().isPresent()) {
+            options.add("incremental_load");
+        }
+        if (PartitionPlanner.isEnabled(task)) {
+            options.add("partition_count");
+        }
+        if (task.getCheckpointDirectory().isPresent()) {
+            options.add("checkpoint_directory");
+        }
+        if (task.getCursorRetryLimit() > 0) {
+            options.add("cursor_retry_limit");
+        }
+        if (task.getPrefetchBatches() > 0 || task.getDecodeThreads() > 1) {
+            options.add("prefetch_batches or decode_threads");
+        }
+        if (!options.isEmpty()) {
+            throw new ConfigException(String.format("both of %s and mode: %s can't be used together", String.join(", ", options), task.getMode()));
+        }
+        ChangeStream.getFullDocument(task);
+    }
+
+    // Snapshot tasks read documents as `mode: query` does, and the last task reads change events from the start of the snapshot
+    private void validateSnapshotMode(PluginTask task)
+    {
+        if (task.getResumeToken().isPresent()) {
+            throw new ConfigException("mode: snapshot_change_stream loads the whole collection. Use mode: change_stream with resume_token for following loads");
+        }
+        List<String> options = new ArrayList<>();
+        if (!task.getQuery().equals("{}") || !task.getProjection().equals("{}")) {
+            // Change events can't be filtered in the same way as documents
+            options.add("query or projection");
+        }
+        if (task.getAggregation().isPresent()) {
+            options.add("aggregation");
+        }
+        if (!task.getSort().equals("{}")) {
+            options.add("sort");
+        }
+        if (task.getLimit().isPresent() || task.getSkip().isPresent()) {
+            options.add("limit or skip");
+        }
+        if (task.getIncrementalField().isPresent()) {
+            options.add("incremental_load");
+        }
+        if (!options.isEmpty()) {
+            throw new ConfigException(String.format("both of %s and mode: %s can't be used together", String.join(", ", options), task.getMode()));
+        }
+        ChangeStream.getFullDocument(task);
+    }
+
+    // The task after the snapshot tasks which replays changes made since the snapshot started
+    private static boolean isCatchUpTask(PluginTask task, int taskIndex)
+    {
+        return task.getMode() == ReadMode.SNAPSHOT_CHANGE_STREAM && taskIndex == Math.max(1, task.getPartitions().size());
+    }
+
+    // Documents of the snapshot are wrapped in the shape of change events
+    private static <T> Codec<T> wrapSnapshot(PluginTask task, int taskIndex, Codec<T> codec)
+    {
+        if (task.getMode() != ReadMode.SNAPSHOT_CHANGE_STREAM || isCatchUpTask(task, taskIndex)) {
+            return codec;
+        }
+        return new EnvelopeCodec<>(codec, EventStream.toTimestamp("start_at_operation_time", task.getStartAtOperationTime().get()));
+    }
+
+    private Schema buildSchema(PluginTask task)
+    {
+        if (task.getColumns().isPresent()) {
+            return task.getColumns().get().toSchema();
+        }
+        return Schema.builder().add(task.getJsonColumnName(), Types.JSON).build();
     }
 
     @Override
@@ -143,6 +405,14 @@ public class MongodbInputPlugin
         if (report.size() > 0 && report.get(0).has("last_record")) {
             configDiff.set("last_record", report.get(0).get(Map.class, "last_record"));
         }
+        // Positions of streams are reported by the task which reads the stream
+        for (TaskReport taskReport : report) {
+            for (String position : Arrays.asList("resume_token", "start_at_operation_time", "oplog_timestamp")) {
+                if (taskReport.has(position)) {
+                    configDiff.set(position, taskReport.get(Map.class, position));
+                }
+            }
+        }
 
         return configDiff;
     }
@@ -167,24 +437,225 @@ public class MongodbInputPlugin
         final Column column = pageBuilder.getSchema().getColumns().get(0);
 
         ValueCodec valueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
-        MongoCollection<Value> collection;
+        Optional<Partition> partition = Optional.empty();
+        if (!task.getPartitions().isEmpty() && !isCatchUpTask(task, taskIndex)) {
+            partition = Optional.of(task.getPartitions().get(taskIndex));
+        }
+        Optional<String> shardHosts = Optional.empty();
+        if (task.getConnectToShards() && partition.isPresent()) {
+            shardHosts = partition.get().getHosts();
+        }
+        else if (!task.getReadHosts().isEmpty() && partition.isPresent()) {
+            shardHosts = Optional.of(task.getReadHosts().get(taskIndex % task.getReadHosts().size()));
+            log.info("Reading the partition from {}", shardHosts.get());
+        }
+        MongoClientCache.Lease lease;
         try {
-            MongoDatabase db = connect(task);
-
-            CodecRegistry registry = CodecRegistries.fromRegistries(
-                    MongoClient.getDefaultCodecRegistry(),
-                    CodecRegistries.fromCodecs(valueCodec)
-            );
-            collection = db.getCollection(task.getCollection(), Value.class)
-                    .withCodecRegistry(registry);
+            lease = connect(task, shardHosts);
         }
         catch (UnknownHostException | MongoException ex) {
             throw new ConfigException(ex);
         }
+        try {
+            return read(task, lease, partition, taskIndex, valueCodec, pageBuilder, column);
+        }
+        finally {
+            lease.close();
+        }
+    }
+
+    private TaskReport read(PluginTask task, MongoClientCache.Lease lease, Optional<Partition> partition, int taskIndex,
+            ValueCodec valueCodec, PageBuilder pageBuilder, Column column)
+    {
+        QueryPlan plan = QueryPlan.decode(task.getPlan());
+        Bson query = plan.getQuery();
+        if (partition.isPresent()) {
+            query = Filters.and(query, plan.getPartitionFilter(taskIndex).get());
+            log.info("Reading partition {}: {}", taskIndex, partition.get());
+        }
+
+        Optional<EventStream> eventStream = Optional.empty();
+        if (task.getMode() == ReadMode.CHANGE_STREAM || task.getMode() == ReadMode.OPLOG || isCatchUpTask(task, taskIndex)) {
+            eventStream = Optional.of(EventStream.create(task));
+        }
+
+        Optional<Checkpoint> checkpoint = Optional.empty();
+        if (task.getCheckpointDirectory().isPresent()) {
+            checkpoint = Optional.of(new Checkpoint(task, taskIndex, partition, pageBuilder::flush));
+            query = checkpoint.get().resume(query);
+        }
+
+        // Codecs of decoder threads, to report their counters with the task
+        final List<ValueCodec> workerValueCodecs = new ArrayList<>();
+        if (task.getColumns().isPresent()) {
+            final ColumnCodec columnCodec = new ColumnCodec(task, valueCodec);
+            final Codec<Object[]> codec = wrapSnapshot(task, taskIndex, columnCodec);
+            MongoCollection<Object[]> collection = lease.getDatabase().getCollection(task.getCollection(), Object[].class)
+                    .withCodecRegistry(createCodecRegistry(codec))
+                    .withReadConcern(getReadConcern(task));
+            if (task.getReadPreference().isPresent()) {
+                collection = collection.withReadPreference(getReadPreference(task).get());
+            }
+            DocumentPipeline.CodecFactory<Object[]> workerCodecs = () -> {
+                ValueCodec workerValueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+                workerValueCodecs.add(workerValueCodec);
+                return wrapSnapshot(task, taskIndex, new ColumnCodec(task, workerValueCodec));
+            };
+            Consumer<Object[]> consumer = row -> {
+                if (row == null) {
+                    // dropped by on_unsupported_value
+                    return;
+                }
+                columnCodec.setColumns(pageBuilder, row);
+                pageBuilder.addRecord();
+            };
+            if (eventStream.isPresent()) {
+                eventStream.get().read(lease, collection, columnCodec, plan, consumer);
+            }
+            else {
+                readDocuments(task, plan, collection, codec, workerCodecs, query, checkpoint, consumer);
+            }
+        }
+        else {
+            final Codec<Value> codec = wrapSnapshot(task, taskIndex, valueCodec);
+            MongoCollection<Value> collection = lease.getDatabase().getCollection(task.getCollection(), Value.class)
+                    .withCodecRegistry(createCodecRegistry(codec))
+                    .withReadConcern(getReadConcern(task));
+            if (task.getReadPreference().isPresent()) {
+                collection = collection.withReadPreference(getReadPreference(task).get());
+            }
+            DocumentPipeline.CodecFactory<Value> workerCodecs = () -> {
+                ValueCodec workerValueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+                workerValueCodecs.add(workerValueCodec);
+                return wrapSnapshot(task, taskIndex, workerValueCodec);
+            };
+            Consumer<Value> consumer = value -> {
+                if (value == null) {
+                    // dropped by on_unsupported_value
+                    return;
+                }
+                pageBuilder.setJson(column, value);
+                pageBuilder.addRecord();
+            };
+            if (eventStream.isPresent()) {
+                eventStream.get().read(lease, collection, valueCodec, plan, consumer);
+            }
+            else {
+                readDocuments(task, plan, collection, codec, workerCodecs, query, checkpoint, consumer);
+            }
+        }
+
+        pageBuilder.finish();
+        TaskReport report = updateTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport(), valueCodec, task);
+        reportUnsupportedValues(report, valueCodec, workerValueCodecs);
+        if (eventStream.isPresent()) {
+            eventStream.get().updateTaskReport(report);
+        }
+        return report;
+    }
+
+    private static CodecRegistry createCodecRegistry(Codec<?> codec)
+    {
+        return CodecRegistries.fromRegistries(
+                MongoClient.getDefaultCodecRegistry(),
+                CodecRegistries.fromCodecs(codec)
+        );
+    }
+
+    private <T> void readDocuments(PluginTask task, QueryPlan plan, MongoCollection<T> collection, Codec<T> codec, DocumentPipeline.CodecFactory<T> workerCodecs,
+            Bson query, Optional<Checkpoint> checkpoint, Consumer<T> consumer)
+    {
+        // The last emitted document, to re-open the cursor after it
+        final AtomicReference<RawBsonDocument> last = new AtomicReference<>();
+        BiConsumer<RawBsonDocument, T> emit = (raw, document) -> {
+            consumer.accept(document);
+            if (checkpoint.isPresent()) {
+                checkpoint.get().emitted(raw);
+            }
+            last.set(raw);
+        };
+
+        int retries = 0;
+        Bson currentQuery = query;
+        while (true) {
+            RawBsonDocument start = last.get();
+            try {
+                readDocumentsOnce(task, plan, collection, codec, workerCodecs, currentQuery, checkpoint.isPresent() || task.getCursorRetryLimit() > 0, emit);
+                break;
+            }
+            catch (MongoException ex) {
+                if (last.get() != start) {
+                    // The limit applies to consecutive failures without progress
+                    retries = 0;
+                }
+                if (retries >= task.getCursorRetryLimit() || !isRetryable(ex)) {
+                    throw ex;
+                }
+                retries++;
+                long wait = Math.min(task.getCursorRetryInitialWaitMillis() << Math.min(retries - 1, 30), task.getCursorRetryMaxWaitMillis());
+                log.warn(String.format("Retrying to read documents (%d/%d) in %d ms: %s", retries, task.getCursorRetryLimit(), wait, ex.getMessage()));
+                if (last.get() != null) {
+                    currentQuery = Filters.and(query, KeyRanges.after("_id", last.get().get("_id")));
+                }
+                try {
+                    Thread.sleep(wait);
+                }
+                catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+        if (checkpoint.isPresent()) {
+            checkpoint.get().complete();
+        }
+    }
 
-        Bson query = BasicDBObject.parse(task.getQuery());
-        Bson projection = BasicDBObject.parse(task.getProjection());
-        Bson sort = BasicDBObject.parse(task.getSort());
+    // Errors which a new cursor can recover from, such as timed-out cursors, network errors and elections
+    private static boolean isRetryable(MongoException ex)
+    {
+        if (ex instanceof MongoCursorNotFoundException || ex instanceof MongoSocketException
+                || ex instanceof MongoNotPrimaryException || ex instanceof MongoNodeIsRecoveringException
+                || ex instanceof MongoTimeoutException) {
+            return true;
+        }
+        return (ex instanceof MongoCommandException || ex instanceof MongoQueryException) && RETRYABLE_ERROR_CODES.contains(ex.getCode());
+    }
+
+    private <T> void readDocumentsOnce(PluginTask task, QueryPlan plan, MongoCollection<T> collection, Codec<T> codec, DocumentPipeline.CodecFactory<T> workerCodecs,
+            Bson query, boolean needsRaw, BiConsumer<RawBsonDocument, T> emit)
+    {
+        if (task.getPrefetchBatches() > 0 || task.getDecodeThreads() > 1) {
+            // Raw documents are read ahead on a background thread, and decoded on this thread or decoder threads
+            MongoIterable<RawBsonDocument> documents = openDocuments(task, plan, collection.withDocumentClass(RawBsonDocument.class), query);
+            try (DocumentPipeline<T> pipeline = new DocumentPipeline<>(documents.iterator(), codec, workerCodecs,
+                    task.getBatchSize(), task.getPrefetchBatches(), task.getDecodeThreads(), task.getPreserveOrder())) {
+                pipeline.forEach(emit);
+            }
+        }
+        else if (needsRaw) {
+            // Raw documents are kept to read the _id of each document
+            try (MongoCursor<RawBsonDocument> cursor = openDocuments(task, plan, collection.withDocumentClass(RawBsonDocument.class), query).iterator()) {
+                while (cursor.hasNext()) {
+                    RawBsonDocument raw = cursor.next();
+                    emit.accept(raw, raw.decode(codec));
+                }
+            }
+        }
+        else {
+            try (MongoCursor<T> cursor = openDocuments(task, plan, collection, query).iterator()) {
+                while (cursor.hasNext()) {
+                    emit.accept(null, cursor.next());
+                }
+            }
+        }
+    }
+
+    // Package-private so that tests can make the cursor fail
+    <T> MongoIterable<T> openDocuments(PluginTask task, QueryPlan plan, MongoCollection<T> collection, Bson query)
+    {
+        Bson projection = plan.getProjection();
+        Bson sort = plan.getSort();
 
         log.trace("query: {}", query);
         log.trace("projection: {}", projection);
@@ -196,80 +667,117 @@ public class MongodbInputPlugin
             log.trace("skip: {}", task.getSkip());
         }
 
-        if (task.getAggregation().isPresent()) {
-            Bson aggregationString = Document.parse(task.getAggregation().get());
-            List<Bson> aggregation = Arrays.asList(aggregationString);
-            try (MongoCursor<Value> cursor = collection
-                    .aggregate(aggregation).iterator()) {
-                while (cursor.hasNext()) {
-                    pageBuilder.setJson(column, cursor.next());
-                    pageBuilder.addRecord();
-                }
-            } catch (MongoException ex) {
-                if (ex instanceof RuntimeException) {
-                    throw ex;
-                }
-                throw new RuntimeException(ex);
+        if (plan.getPipeline().isPresent()) {
+            List<Bson> pipeline = new ArrayList<>(plan.getPipeline().get());
+            if (!query.toBsonDocument(BsonDocument.class, collection.getCodecRegistry()).isEmpty()) {
+                // The range of the partition is matched first to use the index of the partition key
+                pipeline.add(0, Aggregates.match(query));
+            }
+            AggregateIterable<T> documents = collection.aggregate(pipeline)
+                    .allowDiskUse(task.getAllowDiskUse())
+                    .batchSize(task.getBatchSize());
+            if (task.getMaxTimeMs().isPresent()) {
+                documents.maxTime(task.getMaxTimeMs().get(), TimeUnit.MILLISECONDS);
             }
+            if (plan.getHint().isPresent()) {
+                documents.hint(plan.getHint().get());
+            }
+            if (task.getComment().isPresent()) {
+                documents.comment(task.getComment().get());
+            }
+            return documents;
         }
         else {
-            try (MongoCursor<Value> cursor = collection
+            FindIterable<T> documents = collection
                     .find(query)
                     .projection(projection)
                     .sort(sort)
                     .batchSize(task.getBatchSize())
                     .limit(task.getLimit().orElse(0))
                     .skip(task.getSkip().orElse(0))
-                    .iterator()) {
-                while (cursor.hasNext()) {
-                    pageBuilder.setJson(column, cursor.next());
-                    pageBuilder.addRecord();
-                }
-            } catch (MongoException ex) {
-                if (ex instanceof RuntimeException) {
-                    throw ex;
-                }
-                throw new RuntimeException(ex);
+                    .noCursorTimeout(task.getNoCursorTimeout())
+                    .returnKey(task.getReturnKey())
+                    .showRecordId(task.getShowRecordId());
+            if (task.getMaxTimeMs().isPresent()) {
+                documents.maxTime(task.getMaxTimeMs().get(), TimeUnit.MILLISECONDS);
+            }
+            if (plan.getHint().isPresent()) {
+                documents.hint(plan.getHint().get());
+            }
+            if (plan.getMin().isPresent()) {
+                documents.min(plan.getMin().get());
+            }
+            if (plan.getMax().isPresent()) {
+                documents.max(plan.getMax().get());
             }
+            if (task.getComment().isPresent()) {
+                documents.comment(task.getComment().get());
+            }
+            return documents;
         }
+    }
 
-        pageBuilder.finish();
-        return updateTaskReport(CONFIG_MAPPER_FACTORY.newTaskReport(), valueCodec, task);
+    // Numbers of unsupported values by field and type, like {"price": {"max_key": 3}}, with one warning per task
+    private void reportUnsupportedValues(TaskReport report, ValueCodec valueCodec, List<ValueCodec> workerValueCodecs)
+    {
+        Map<String, Map<String, Long>> counts = new TreeMap<>();
+        List<ValueCodec> codecs = new ArrayList<>(workerValueCodecs);
+        codecs.add(valueCodec);
+        for (ValueCodec codec : codecs) {
+            for (Map.Entry<String, Map<BsonType, Long>> field : codec.getUnsupportedValues().entrySet()) {
+                Map<String, Long> types = counts.computeIfAbsent(field.getKey(), k -> new TreeMap<>());
+                for (Map.Entry<BsonType, Long> type : field.getValue().entrySet()) {
+                    types.merge(type.getKey().name().toLowerCase(Locale.ENGLISH), type.getValue(), Long::sum);
+                }
+            }
+        }
+        if (!counts.isEmpty()) {
+            log.warn("Found unsupported values: {}", counts);
+            report.set("unsupported_values", counts);
+        }
     }
 
     private TaskReport updateTaskReport(TaskReport report, ValueCodec valueCodec, PluginTask task)
     {
         final TaskReport lastRecord = CONFIG_MAPPER_FACTORY.newTaskReport();
-        if (valueCodec.getLastRecord() != null && valueCodec.getProcessedRecordCount() > 0) {
-            for (String k : valueCodec.getLastRecord().keySet()) {
-                String value = valueCodec.getLastRecord().get(k).toString();
-                Map<String, String> types = valueCodec.getLastRecordType();
+        if (valueCodec.getProcessedRecordCount() > 0 && !valueCodec.getLastRecord().isEmpty()) {
+            // Values are saved from BSON, as the output of `type_mapping` can't be queried again
+            for (Map.Entry<String, BsonValue> field : valueCodec.getLastRecord().entrySet()) {
+                String k = field.getKey();
+                BsonValue value = field.getValue();
                 HashMap<String, String> innerValue = new HashMap<>();
-                switch(types.get(k)) {
-                    case "OBJECT_ID":
-                        innerValue.put("$oid", value);
+                switch (value.getBsonType()) {
+                    case OBJECT_ID:
+                        innerValue.put("$oid", value.asObjectId().getValue().toHexString());
                         lastRecord.set(k, innerValue);
                         break;
-                    case "DATE_TIME":
-                        innerValue.put("$date", value);
+                    case DATE_TIME:
+                        innerValue.put("$date", IsoDateFormatter.format(value.asDateTime().getValue()));
                         lastRecord.set(k, innerValue);
                         break;
-                    case "INT32":
-                    case "INT64":
-                    case "TIMESTAMP":
-                        lastRecord.set(k, Integer.valueOf(value));
+                    case INT32:
+                    case INT64:
+                        lastRecord.set(k, value.asNumber().longValue());
                         break;
-                    case "BOOLEAN":
-                        lastRecord.set(k, Boolean.valueOf(value));
+                    case BOOLEAN:
+                        lastRecord.set(k, value.asBoolean().getValue());
                         break;
-                    case "DOUBLE":
-                        lastRecord.set(k, Double.valueOf(value));
+                    case DOUBLE:
+                        lastRecord.set(k, value.asDouble().getValue());
+                        break;
+                    case DECIMAL128:
+                        innerValue.put("$numberDecimal", value.asDecimal128().getValue().toString());
+                        lastRecord.set(k, innerValue);
                         break;
-                    case "DOCUMENT":
-                    case "ARRAY":
-                        throw new ConfigException(String.format("Unsupported type '%s' was given for 'last_record' [%s]", types.get(k), value));
+                    case STRING:
+                        lastRecord.set(k, value.asString().getValue());
+                        break;
+                    case DOCUMENT:
+                    case ARRAY:
+                        throw new ConfigException(String.format("Unsupported type '%s' was given for 'last_record' [%s]", value.getBsonType(), value));
                     default:
-                        lastRecord.set(k, value);
+                        // Such as a Timestamp, of which the increment is kept by Extended JSON
+                        lastRecord.set(k, EventStream.toMap(new BsonDocument(k, value)).get(k));
                 }
             }
         }
@@ -287,32 +795,133 @@ public class MongodbInputPlugin
     @Override
     public ConfigDiff guess(ConfigSource config)
     {
-        return CONFIG_MAPPER_FACTORY.newConfigDiff();
+        ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        if (task.getColumns().isPresent()) {
+            return configDiff;
+        }
+
+        List<Map<String, Object>> columns;
+        try (MongoClientCache.Lease lease = connect(task, Optional.<String>empty())) {
+            columns = new SchemaGuesser(task).guess(lease.getDatabase());
+        }
+        catch (UnknownHostException | MongoException ex) {
+            throw new ConfigException(ex);
+        }
+        if (!columns.isEmpty()) {
+            configDiff.set("columns", columns);
+        }
+        return configDiff;
+    }
+
+    private MongoClientCache.Lease connect(final PluginTask task, final Optional<String> shardHosts) throws UnknownHostException, MongoException
+    {
+        return MongoClientCache.acquire(getClientKey(task, shardHosts), getDatabaseName(task),
+                () -> createClient(task, shardHosts));
+    }
+
+    // Looks up the collection by name to fail fast on connection and permission errors,
+    // instead of counting documents which can scan the whole collection on views and old servers
+    private void checkCollection(MongoDatabase db, String collectionName) throws MongoException
+    {
+        Document info = db.listCollections().filter(Filters.eq("name", collectionName)).first();
+        if (info == null) {
+            log.warn("Collection '{}' doesn't exist in database '{}'", collectionName, db.getName());
+        }
+    }
+
+    private void collectStats(PartitionPlanner planner)
+    {
+        try {
+            planner.collectionStats();
+        }
+        catch (MongoCommandException ex) {
+            // Views and some hosted services don't support collStats
+            log.warn("Failed to collect the collection stats: {}", ex.getErrorMessage());
+        }
     }
 
-    private MongoDatabase connect(final PluginTask task) throws UnknownHostException, MongoException
+    // Identifies connection settings which can share one MongoClient
+    private String getClientKey(final PluginTask task, final Optional<String> shardHosts)
     {
-        MongoClient mongoClient;
-        String database;
+        List<Object> key = new ArrayList<>();
+        if (task.getUri().isPresent()) {
+            key.add(task.getUri().get());
+        }
+        else if (task.getHosts().isPresent()) {
+            for (HostTask host : task.getHosts().get()) {
+                key.add(host.getHost() + ":" + host.getPort());
+            }
+            key.addAll(Arrays.asList(task.getDatabase(), task.getUser(), task.getPassword(), task.getAuthSource(), task.getAuthMethod(),
+                    task.getTls(), task.getTlsInsecure()));
+        }
+        key.addAll(Arrays.asList(task.getMaxPoolSize(), task.getMinPoolSize(), task.getMaxWaitTimeMillis(), task.getMaxConnectionIdleTimeMillis(),
+                task.getMaxConnectionLifeTimeMillis(), task.getConnectTimeoutMillis(), task.getSocketTimeoutMillis(),
+                task.getServerSelectionTimeoutMillis(), task.getSocketKeepAlive(), task.getCompressors(), task.getZlibCompressionLevel()));
+        key.add(shardHosts);
+        return key.toString();
+    }
 
+    private MongoClient createClient(final PluginTask task, final Optional<String> shardHosts) throws UnknownHostException
+    {
         if (!task.getUri().isPresent() && !task.getHosts().isPresent()) {
             throw new ConfigException("'uri' or 'hosts' is required");
         }
 
         if (task.getUri().isPresent()) {
-            MongoClientURI uri = new MongoClientURI(task.getUri().get());
-            database = uri.getDatabase();
-            mongoClient = new MongoClient(uri);
+            MongoClientURI uri = new MongoClientURI(task.getUri().get(), createConnectionOptions(task, new MongoClientOptions.Builder()));
+            if (shardHosts.isPresent()) {
+                return createShardClient(shardHosts.get(), uri.getCredentials(), uri.getOptions());
+            }
+            return new MongoClient(uri);
+        }
+        else if (shardHosts.isPresent()) {
+            MongoCredential credential = task.getUser().isPresent() ? createCredential(task) : null;
+            return createShardClient(shardHosts.get(), credential, createMongoClientOptions(task));
         }
         else {
-            mongoClient = createClientFromParams(task);
-            database = task.getDatabase().get();
+            return createClientFromParams(task);
+        }
+    }
+
+    private String getDatabaseName(final PluginTask task)
+    {
+        if (task.getUri().isPresent()) {
+            return new MongoClientURI(task.getUri().get()).getDatabase();
+        }
+        // Missing 'database' is reported by createClientFromParams
+        return task.getDatabase().orElse(null);
+    }
+
+    // Shard hosts are recorded as "<replica set name>/<host>:<port>,<host>:<port>" in config.shards.
+    // A single "<host>:<port>" is connected directly, without discovering the other members.
+    private MongoClient createShardClient(String shardHosts, MongoCredential credential, MongoClientOptions options)
+    {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder(options);
+        String seeds = shardHosts;
+        int slash = shardHosts.indexOf('/');
+        if (slash >= 0) {
+            builder.requiredReplicaSetName(shardHosts.substring(0, slash));
+            seeds = shardHosts.substring(slash + 1);
+        }
+
+        List<ServerAddress> addresses = new ArrayList<>();
+        for (String seed : seeds.split(",")) {
+            addresses.add(new ServerAddress(seed));
+        }
+        if (slash < 0 && addresses.size() == 1) {
+            if (credential != null) {
+                return new MongoClient(addresses.get(0), credential, builder.build());
+            }
+            return new MongoClient(addresses.get(0), builder.build());
         }
 
-        MongoDatabase db = mongoClient.getDatabase(database);
-        // Get collection count for throw Exception
-        db.getCollection(task.getCollection()).count();
-        return db;
+        if (credential != null) {
+            return new MongoClient(addresses, credential, builder.build());
+        }
+        else {
+            return new MongoClient(addresses, builder.build());
+        }
     }
 
     private MongoClient createClientFromParams(PluginTask task)
@@ -339,7 +948,7 @@ public class MongodbInputPlugin
 
     private MongoClientOptions createMongoClientOptions(PluginTask task)
     {
-        MongoClientOptions.Builder builder = new MongoClientOptions.Builder();
+        MongoClientOptions.Builder builder = createConnectionOptions(task, new MongoClientOptions.Builder());
         if (task.getTls()) {
             builder.sslEnabled(true);
             if (task.getTlsInsecure()) {
@@ -350,6 +959,70 @@ public class MongodbInputPlugin
         return builder.build();
     }
 
+    @SuppressWarnings("deprecation")
+    static MongoClientOptions.Builder createConnectionOptions(PluginTask task, MongoClientOptions.Builder builder)
+    {
+        try {
+            if (task.getMaxPoolSize().isPresent()) {
+                builder.connectionsPerHost(task.getMaxPoolSize().get());
+            }
+            if (task.getMinPoolSize().isPresent()) {
+                builder.minConnectionsPerHost(task.getMinPoolSize().get());
+            }
+            if (task.getMaxWaitTimeMillis().isPresent()) {
+                builder.maxWaitTime(task.getMaxWaitTimeMillis().get());
+            }
+            if (task.getMaxConnectionIdleTimeMillis().isPresent()) {
+                builder.maxConnectionIdleTime(task.getMaxConnectionIdleTimeMillis().get());
+            }
+            if (task.getMaxConnectionLifeTimeMillis().isPresent()) {
+                builder.maxConnectionLifeTime(task.getMaxConnectionLifeTimeMillis().get());
+            }
+            if (task.getConnectTimeoutMillis().isPresent()) {
+                builder.connectTimeout(task.getConnectTimeoutMillis().get());
+            }
+            if (task.getSocketTimeoutMillis().isPresent()) {
+                builder.socketTimeout(task.getSocketTimeoutMillis().get());
+            }
+            if (task.getServerSelectionTimeoutMillis().isPresent()) {
+                builder.serverSelectionTimeout(task.getServerSelectionTimeoutMillis().get());
+            }
+            if (task.getSocketKeepAlive().isPresent()) {
+                builder.socketKeepAlive(task.getSocketKeepAlive().get());
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            throw new ConfigException(ex.getMessage());
+        }
+
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String name : task.getCompressors()) {
+            switch (name) {
+                case "snappy":
+                    compressors.add(MongoCompressor.createSnappyCompressor());
+                    break;
+                case "zlib":
+                    MongoCompressor zlib = MongoCompressor.createZlibCompressor();
+                    if (task.getZlibCompressionLevel().isPresent()) {
+                        if (task.getZlibCompressionLevel().get() < -1 || task.getZlibCompressionLevel().get() > 9) {
+                            throw new ConfigException("zlib_compression_level must be between -1 and 9");
+                        }
+                        zlib = zlib.withProperty(MongoCompressor.LEVEL, task.getZlibCompressionLevel().get());
+                    }
+                    compressors.add(zlib);
+                    break;
+                case "zstd":
+                    throw new ConfigException("zstd compressor is not supported by the MongoDB Java driver 3.8. Use snappy or zlib");
+                default:
+                    throw new ConfigException(String.format("Unknown compressor '%s'. Supported compressors are snappy, zlib", name));
+            }
+        }
+        if (!compressors.isEmpty()) {
+            builder.compressorList(compressors);
+        }
+        return builder;
+    }
+
     private SSLContext createSSLContextToAcceptAnyCert()
     {
         TrustManager[] trustAllCerts = new TrustManager[] {
@@ -471,16 +1144,136 @@ public class MongodbInputPlugin
         }
     }
 
-    private void validateJsonField(String name, String jsonString)
+    private BsonDocument validateJsonField(String name, String jsonString)
     {
         try {
-            Document.parse(jsonString);
+            return BsonDocument.parse(jsonString);
         }
         catch (JsonParseException ex) {
             throw new ConfigException(String.format("Invalid JSON string was given for '%s' parameter. [%s]", name, jsonString));
         }
     }
 
+    static ReadConcern getReadConcern(PluginTask task)
+    {
+        if (!task.getReadConcern().isPresent()) {
+            return ReadConcern.DEFAULT;
+        }
+        switch (task.getReadConcern().get()) {
+            case "local":
+                return ReadConcern.LOCAL;
+            case "majority":
+                return ReadConcern.MAJORITY;
+            case "snapshot":
+                return ReadConcern.SNAPSHOT;
+            default:
+                throw new ConfigException(String.format("Unknown read_concern '%s'. Supported read_concern are local, majority, snapshot", task.getReadConcern().get()));
+        }
+    }
+
+    static Optional<ReadPreference> getReadPreference(PluginTask task)
+    {
+        if (!task.getReadPreference().isPresent()) {
+            if (!task.getReadPreferenceTags().isEmpty() || task.getMaxStalenessSeconds().isPresent()) {
+                throw new ConfigException("read_preference_tags and max_staleness_seconds require read_preference");
+            }
+            return Optional.empty();
+        }
+        String name;
+        switch (task.getReadPreference().get()) {
+            case "primary":
+                name = "primary";
+                break;
+            case "primary_preferred":
+                name = "primaryPreferred";
+                break;
+            case "secondary":
+                name = "secondary";
+                break;
+            case "secondary_preferred":
+                name = "secondaryPreferred";
+                break;
+            case "nearest":
+                name = "nearest";
+                break;
+            default:
+                throw new ConfigException(String.format("Unknown read_preference '%s'. Supported read_preference are primary, primary_preferred, secondary, secondary_preferred, nearest", task.getReadPreference().get()));
+        }
+        if (task.getMaxStalenessSeconds().isPresent() && task.getMaxStalenessSeconds().get() < MIN_MAX_STALENESS_SECONDS) {
+            throw new ConfigException(String.format("max_staleness_seconds must be %d or more", MIN_MAX_STALENESS_SECONDS));
+        }
+        if (name.equals("primary")) {
+            if (!task.getReadPreferenceTags().isEmpty() || task.getMaxStalenessSeconds().isPresent()) {
+                throw new ConfigException("read_preference_tags and max_staleness_seconds can't be used with read_preference: primary");
+            }
+            return Optional.of(ReadPreference.primary());
+        }
+
+        List<TagSet> tagSets = new ArrayList<>();
+        for (Map<String, String> tags : task.getReadPreferenceTags()) {
+            List<Tag> tagSet = new ArrayList<>();
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                tagSet.add(new Tag(tag.getKey(), tag.getValue()));
+            }
+            tagSets.add(new TagSet(tagSet));
+        }
+        if (task.getMaxStalenessSeconds().isPresent()) {
+            return Optional.of(ReadPreference.valueOf(name, tagSets, task.getMaxStalenessSeconds().get(), TimeUnit.SECONDS));
+        }
+        return Optional.of(ReadPreference.valueOf(name, tagSets));
+    }
+
+    // Secondaries listed by the replica set. Hidden members aren't listed.
+    private List<String> listSecondaries(MongoClient client)
+    {
+        Document result = client.getDatabase("admin").runCommand(new Document("isMaster", 1));
+        List<String> secondaries = new ArrayList<>();
+        if (!result.containsKey("setName")) {
+            log.warn("spread_partitions is ignored since the server is not a member of a replica set");
+            return secondaries;
+        }
+        for (String list : Arrays.asList("hosts", "passives")) {
+            @SuppressWarnings("unchecked")
+            List<String> hosts = result.get(list, List.class);
+            if (hosts != null) {
+                for (String host : hosts) {
+                    if (!host.equals(result.getString("primary"))) {
+                        secondaries.add(host);
+                    }
+                }
+            }
+        }
+        if (secondaries.isEmpty()) {
+            log.warn("spread_partitions is ignored since the replica set has no secondaries");
+        }
+        else {
+            log.info("Partitions are spread across secondaries {}", secondaries);
+        }
+        return secondaries;
+    }
+
+    private List<BsonDocument> validatePipeline(String jsonString)
+    {
+        try {
+            return QueryPlan.parsePipeline(jsonString);
+        }
+        catch (JsonParseException ex) {
+            throw new ConfigException(String.format("Invalid JSON string was given for '%s' parameter. [%s]", "aggrigation", jsonString));
+        }
+    }
+
+    // The range of each partition is matched before the first stage, which gives the same
+    // documents only if every stage processes documents one by one
+    private void validatePartitionedPipeline(List<BsonDocument> pipeline)
+    {
+        for (BsonDocument stage : pipeline) {
+            String name = stage.isEmpty() ? "{}" : stage.getFirstKey();
+            if (!PARTITIONABLE_STAGES.contains(name)) {
+                throw new ConfigException(String.format("Stage %s of aggregation can't be split into partitions. Supported stages are %s", name, PARTITIONABLE_STAGES));
+            }
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private static PageBuilder getPageBuilder(final BufferAllocator bufferAllocator, final Schema schema, final PageOutput output)
     {
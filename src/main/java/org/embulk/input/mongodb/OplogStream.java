@@ -0,0 +1,260 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.conversions.Bson;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Tails local.oplog.rs for deployments without change streams, such as MongoDB 3.4.
+// Oplog entries of the collection are normalized into the shape of change events, and the timestamp
+// of the last entry is reported as the next position.
+public class OplogStream
+        extends EventStream
+{
+    private static final Logger log = LoggerFactory.getLogger(OplogStream.class);
+
+    private static final String OPLOG = "oplog.rs";
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private BsonTimestamp position;
+    private String namespace;
+    private MongoCollection<RawBsonDocument> lookup;
+
+    public OplogStream(PluginTask task)
+    {
+        super(task);
+        if (task.getOplogTimestamp().isPresent()) {
+            this.position = toTimestamp("oplog_timestamp", task.getOplogTimestamp().get());
+        }
+    }
+
+    // The timestamp of the latest entry when the transaction starts, so that an empty run still saves a position
+    static Map<String, Object> latestTimestamp(MongoClient client)
+    {
+        RawBsonDocument latest = client.getDatabase("local").getCollection(OPLOG, RawBsonDocument.class)
+                .find().sort(new Document("$natural", -1)).limit(1).first();
+        if (latest == null) {
+            throw new ConfigException("local.oplog.rs is not found. mode: oplog requires a connection to a replica set member");
+        }
+        return toMap(latest.getTimestamp("ts"));
+    }
+
+    @Override
+    public <T> void read(MongoClientCache.Lease lease, MongoCollection<?> collection, Codec<T> codec, QueryPlan plan, Consumer<T> consumer)
+    {
+        if (position == null) {
+            throw new ConfigException("oplog_timestamp is required for mode: oplog");
+        }
+        if (ChangeStream.getFullDocument(task) == FullDocument.UPDATE_LOOKUP) {
+            lookup = collection.withDocumentClass(RawBsonDocument.class);
+        }
+
+        MongoCollection<RawBsonDocument> oplog = lease.getClient().getDatabase("local").getCollection(OPLOG, RawBsonDocument.class);
+        RawBsonDocument oldest = oplog.find().sort(new Document("$natural", 1)).limit(1).first();
+        if (oldest != null && oldest.getTimestamp("ts").compareTo(position) > 0) {
+            // Entries between the saved position and the oldest entry have been removed
+            throw new DataException(String.format("The oplog has rolled over past oplog_timestamp %s. The collection has to be loaded again.", position));
+        }
+
+        namespace = collection.getNamespace().getFullName();
+        Bson filter = Filters.and(
+                Filters.gt("ts", position),
+                // Chunk migrations write inserts and deletes on shard members
+                Filters.ne("fromMigrate", true),
+                Filters.or(
+                        Filters.and(Filters.eq("ns", namespace), Filters.in("op", Arrays.asList("i", "u", "d"))),
+                        // Writes of a multi-document transaction are written in one applyOps command
+                        Filters.and(Filters.eq("op", "c"), Filters.eq("o.applyOps.ns", namespace))));
+        log.info("Tailing the oplog after {}", position);
+        try (MongoCursor<RawBsonDocument> cursor = oplog
+                .find(filter)
+                .cursorType(CursorType.TailableAwait)
+                .oplogReplay(true)
+                .maxAwaitTime(getAwaitMillis(), TimeUnit.MILLISECONDS)
+                .batchSize(task.getBatchSize())
+                .iterator()) {
+            read(cursor, codec, consumer);
+        }
+    }
+
+    @Override
+    protected List<RawBsonDocument> toRecords(RawBsonDocument entry)
+    {
+        if (!entry.getString("op").getValue().equals("c")) {
+            return super.toRecords(entry);
+        }
+        List<RawBsonDocument> records = new ArrayList<>();
+        for (BsonDocument operation : toTransactionEntries(entry, namespace)) {
+            RawBsonDocument record = toRecord(operation);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    protected RawBsonDocument toRecord(RawBsonDocument entry)
+    {
+        return toRecord((BsonDocument) entry);
+    }
+
+    private RawBsonDocument toRecord(BsonDocument entry)
+    {
+        BsonDocument event = toEvent(entry);
+        if (event == null) {
+            return null;
+        }
+        if (lookup != null && event.getString("operationType").getValue().equals("update")) {
+            RawBsonDocument current = lookup.find(event.getDocument("documentKey")).first();
+            event.put("fullDocument", current == null ? BsonNull.VALUE : current);
+        }
+        event.put("clusterTime", toClusterTime(entry.getTimestamp("ts")));
+        return new RawBsonDocument(event, DOCUMENT_CODEC);
+    }
+
+    @Override
+    protected void advance(RawBsonDocument entry)
+    {
+        position = entry.getTimestamp("ts");
+    }
+
+    @Override
+    public void updateTaskReport(TaskReport report)
+    {
+        if (position != null) {
+            report.set("oplog_timestamp", toMap(position));
+        }
+    }
+
+    // Entries of the collection in an applyOps entry of a transaction, with the timestamp of the transaction
+    static List<BsonDocument> toTransactionEntries(BsonDocument entry, String namespace)
+    {
+        BsonDocument o = entry.getDocument("o");
+        if (o.getBoolean("prepare", BsonBoolean.FALSE).getValue() || o.getBoolean("partialTxn", BsonBoolean.FALSE).getValue()) {
+            // Whether it's committed is written in another entry
+            throw new DataException(String.format("A prepared or multi-entry transaction is found at %s in the oplog, which mode: oplog can't read."
+                    + " Use mode: change_stream instead.", entry.get("ts")));
+        }
+        List<BsonDocument> entries = new ArrayList<>();
+        for (BsonValue operation : o.getArray("applyOps")) {
+            if (operation.asDocument().getString("ns").getValue().equals(namespace)) {
+                BsonDocument copy = new BsonDocument();
+                copy.putAll(operation.asDocument());
+                copy.put("ts", entry.get("ts"));
+                entries.add(copy);
+            }
+        }
+        return entries;
+    }
+
+    // Normalizes an insert, update or delete entry of the oplog, or returns null for other entries
+    static BsonDocument toEvent(BsonDocument entry)
+    {
+        BsonDocument o = entry.getDocument("o");
+        BsonDocument event = new BsonDocument();
+        switch (entry.getString("op").getValue()) {
+            case "i":
+                event.put("operationType", new BsonString("insert"));
+                event.put("documentKey", new BsonDocument("_id", o.get("_id")));
+                event.put("fullDocument", o);
+                break;
+            case "u":
+                if (!o.isEmpty() && o.getFirstKey().startsWith("$")) {
+                    event.put("operationType", new BsonString("update"));
+                    event.put("documentKey", entry.getDocument("o2"));
+                    event.put("updateDescription", toUpdateDescription(o));
+                }
+                else {
+                    event.put("operationType", new BsonString("replace"));
+                    event.put("documentKey", entry.getDocument("o2"));
+                    event.put("fullDocument", o);
+                }
+                break;
+            case "d":
+                event.put("operationType", new BsonString("delete"));
+                event.put("documentKey", o);
+                break;
+            default:
+                return null;
+        }
+
+        String namespace = entry.getString("ns").getValue();
+        int dot = namespace.indexOf('.');
+        event.put("ns", new BsonDocument("db", new BsonString(namespace.substring(0, dot)))
+                .append("coll", new BsonString(namespace.substring(dot + 1))));
+        event.put("clusterTime", entry.get("ts"));
+        return event;
+    }
+
+    // Update entries are written with $set and $unset. Other forms are kept as is in `rawUpdate`.
+    private static BsonDocument toUpdateDescription(BsonDocument o)
+    {
+        BsonDocument updatedFields = new BsonDocument();
+        BsonArray removedFields = new BsonArray();
+        boolean others = false;
+        for (Map.Entry<String, BsonValue> operator : o.entrySet()) {
+            switch (operator.getKey()) {
+                case "$set":
+                    updatedFields.putAll(operator.getValue().asDocument());
+                    break;
+                case "$unset":
+                    for (String field : operator.getValue().asDocument().keySet()) {
+                        removedFields.add(new BsonString(field));
+                    }
+                    break;
+                case "$v":
+                    break;
+                default:
+                    others = true;
+            }
+        }
+        BsonDocument description = new BsonDocument("updatedFields", updatedFields).append("removedFields", removedFields);
+        if (others) {
+            description.put("rawUpdate", o);
+        }
+        return description;
+    }
+}
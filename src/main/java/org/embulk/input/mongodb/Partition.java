@@ -0,0 +1,79 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.bson.BsonDocument;
+
+import java.util.Optional;
+
+// A range of the source collection which is read by one Embulk task.
+// The filter is kept as an extended JSON string so that it survives the TaskSource round trip without loss.
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE, isGetterVisibility = JsonAutoDetect.Visibility.NONE)
+public class Partition
+{
+    @JsonProperty("filter")
+    private final String filter;
+
+    // Shard which owns the range, and its hosts in "<replica set name>/<host>:<port>,..." form
+    @JsonProperty("shard")
+    private final String shard;
+
+    @JsonProperty("hosts")
+    private final String hosts;
+
+    public Partition(String filter)
+    {
+        this(filter, null, null);
+    }
+
+    @JsonCreator
+    public Partition(@JsonProperty("filter") String filter, @JsonProperty("shard") String shard, @JsonProperty("hosts") String hosts)
+    {
+        this.filter = filter;
+        this.shard = shard;
+        this.hosts = hosts;
+    }
+
+    public String getFilter()
+    {
+        return filter;
+    }
+
+    public Optional<String> getShard()
+    {
+        return Optional.ofNullable(shard);
+    }
+
+    public Optional<String> getHosts()
+    {
+        return Optional.ofNullable(hosts);
+    }
+
+    public BsonDocument toFilter()
+    {
+        return BsonDocument.parse(filter);
+    }
+
+    @Override
+    public String toString()
+    {
+        return shard == null ? filter : String.format("%s on shard '%s'", filter, shard);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+public enum PartitionMethod
+{
+    INTERPOLATE,
+    SPLIT_VECTOR,
+    BUCKET_AUTO,
+    SAMPLE,
+    CHUNKS;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static PartitionMethod fromString(String value)
+    {
+        switch (value.replace("-", "_")) {
+            case "interpolate":
+                return INTERPOLATE;
+            case "split_vector":
+                return SPLIT_VECTOR;
+            case "bucket_auto":
+                return BUCKET_AUTO;
+            case "sample":
+                return SAMPLE;
+            case "chunks":
+                return CHUNKS;
+            default:
+                throw new ConfigException(String.format("Unknown partition_method '%s'. Supported partition_method are interpolate, split_vector, bucket_auto, sample, chunks", value));
+        }
+    }
+}
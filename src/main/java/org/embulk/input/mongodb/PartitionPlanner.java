@@ -0,0 +1,436 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Splits the documents matched by the query into ranges of the partition field.
+public class PartitionPlanner
+{
+    // Upper bound of the number of partitions derived from documents_per_partition or bytes_per_partition
+    private static final long MAX_PARTITION_COUNT = 10000;
+
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    // Number of sampled documents per partition used by the sample method
+    private static final int SAMPLES_PER_PARTITION = 100;
+
+    private final Logger log = LoggerFactory.getLogger(PartitionPlanner.class);
+    private final PluginTask task;
+    private final MongoDatabase db;
+    private final MongoDatabase configDb;
+    private BsonDocument stats;
+    private final MongoCollection<BsonDocument> collection;
+    private final BsonDocument query;
+    private final String field;
+
+    public PartitionPlanner(PluginTask task, MongoDatabase db, MongoDatabase configDb)
+    {
+        this.task = task;
+        this.db = db;
+        this.configDb = configDb;
+        this.collection = db == null ? null : db.getCollection(task.getCollection(), BsonDocument.class);
+        this.query = BsonDocument.parse(task.getQuery());
+        this.field = task.getPartitionField();
+    }
+
+    public static boolean isEnabled(PluginTask task)
+    {
+        return task.getPartitionCount() > 1
+                || task.getDocumentsPerPartition().isPresent()
+                || task.getBytesPerPartition().isPresent()
+                || task.getPartitionMethod() == PartitionMethod.CHUNKS;
+    }
+
+    public List<Partition> plan()
+    {
+        if (task.getPartitionMethod() == PartitionMethod.CHUNKS) {
+            List<Partition> partitions = chunkPartitions();
+            log.info("Split '{}' into {} partitions by chunks", collection.getNamespace(), partitions.size());
+            return partitions;
+        }
+
+        int partitionCount = targetPartitionCount();
+        if (partitionCount <= 1) {
+            return Collections.emptyList();
+        }
+        checkNoArrays();
+
+        List<BsonValue> boundaries;
+        switch (task.getPartitionMethod()) {
+            case SPLIT_VECTOR:
+                boundaries = splitVectorBoundaries(partitionCount);
+                break;
+            case BUCKET_AUTO:
+                boundaries = bucketAutoBoundaries(partitionCount);
+                break;
+            case SAMPLE:
+                boundaries = sampleBoundaries(partitionCount);
+                break;
+            case INTERPOLATE:
+            default:
+                boundaries = interpolateBoundaries(partitionCount);
+        }
+        List<Partition> partitions = toPartitions(boundaries);
+        log.info("Split '{}' into {} partitions by '{}' with {} method",
+                collection.getNamespace(), partitions.size(), field, task.getPartitionMethod());
+        return partitions;
+    }
+
+    // Ranges match arrays element by element, so a document with an array in the field would be read by more than one task,
+    // or only by the first one if it's empty. `_id` can't be an array.
+    private void checkNoArrays()
+    {
+        if (field.equals("_id")) {
+            return;
+        }
+        if (collection.find(Filters.and(query, Filters.type(field, BsonType.ARRAY))).projection(new BsonDocument("_id", new BsonInt32(1))).first() != null) {
+            throw new ConfigException(String.format("partition_field '%s' can't have arrays, as documents with them would be read by more than one partition", field));
+        }
+    }
+
+    private int targetPartitionCount()
+    {
+        if (!task.getDocumentsPerPartition().isPresent() && !task.getBytesPerPartition().isPresent()) {
+            return task.getPartitionCount();
+        }
+        BsonDocument stats = collectionStats();
+        long count = stats.getNumber("count", new BsonInt64(0)).longValue();
+        long size = stats.getNumber("size", new BsonInt64(0)).longValue();
+        long partitionCount;
+        if (task.getDocumentsPerPartition().isPresent()) {
+            partitionCount = (count + task.getDocumentsPerPartition().get() - 1) / task.getDocumentsPerPartition().get();
+        }
+        else {
+            partitionCount = (size + task.getBytesPerPartition().get() - 1) / task.getBytesPerPartition().get();
+        }
+        return (int) Math.max(1, Math.min(partitionCount, MAX_PARTITION_COUNT));
+    }
+
+    // collStats reads the counters kept by the storage engine, so it's cheap even on huge collections
+    BsonDocument collectionStats()
+    {
+        if (stats == null) {
+            stats = db.runCommand(new BsonDocument("collStats", new BsonString(task.getCollection())), BsonDocument.class);
+            log.info("Collection '{}' has {} documents in {} bytes", collection.getNamespace(),
+                    stats.getNumber("count", new BsonInt64(0)).longValue(), stats.getNumber("size", new BsonInt64(0)).longValue());
+        }
+        return stats;
+    }
+
+    // The first partition takes everything below the first boundary with $not, so that
+    // documents whose partition field is missing or has another BSON type are still read exactly once.
+    List<Partition> toPartitions(List<BsonValue> boundaries)
+    {
+        return toPartitions(field, boundaries);
+    }
+
+    private static List<Partition> toPartitions(String field, List<BsonValue> boundaries)
+    {
+        List<Partition> partitions = new ArrayList<>();
+        if (boundaries.isEmpty()) {
+            return partitions;
+        }
+        if (!isSingleTypeBracket(boundaries)) {
+            // $gte and $lt between boundaries of different types match nothing, so ranges are matched with types between them
+            partitions.add(newPartition(KeyRanges.before(field, boundaries.get(0))));
+            for (int i = 1; i < boundaries.size(); i++) {
+                partitions.add(newPartition(KeyRanges.between(field, boundaries.get(i - 1), boundaries.get(i))));
+            }
+            partitions.add(newPartition(KeyRanges.atOrAfter(field, boundaries.get(boundaries.size() - 1))));
+            return partitions;
+        }
+        partitions.add(newPartition(field, new BsonDocument("$not", new BsonDocument("$gte", boundaries.get(0)))));
+        for (int i = 1; i < boundaries.size(); i++) {
+            partitions.add(newPartition(field, new BsonDocument("$gte", boundaries.get(i - 1)).append("$lt", boundaries.get(i))));
+        }
+        partitions.add(newPartition(field, new BsonDocument("$gte", boundaries.get(boundaries.size() - 1))));
+        return partitions;
+    }
+
+    private static boolean isSingleTypeBracket(List<BsonValue> boundaries)
+    {
+        int rank = KeyRanges.rank(boundaries.get(0).getBsonType());
+        boolean single = true;
+        for (BsonValue boundary : boundaries) {
+            if (!KeyRanges.isRangeType(boundary.getBsonType())) {
+                throw new ConfigException(String.format("Values of %s type can't be boundaries of partitions [%s]", boundary.getBsonType(), boundary));
+            }
+            single &= KeyRanges.rank(boundary.getBsonType()) == rank;
+        }
+        return single;
+    }
+
+    private static Partition newPartition(String field, BsonDocument condition)
+    {
+        return newPartition(new BsonDocument(field, condition));
+    }
+
+    private static Partition newPartition(BsonDocument filter)
+    {
+        return new Partition(filter.toJson(JSON_SETTINGS));
+    }
+
+    // Reads the chunk map of a sharded collection from the config database, and makes one range
+    // for each run of contiguous chunks owned by the same shard.
+    private List<Partition> chunkPartitions()
+    {
+        String ns = collection.getNamespace().getFullName();
+        BsonDocument metadata = configDb.getCollection("collections", BsonDocument.class)
+                .find(new BsonDocument("_id", new BsonString(ns)))
+                .first();
+        if (metadata == null || metadata.getBoolean("dropped", BsonBoolean.FALSE).getValue()) {
+            log.warn("Collection '{}' is not sharded. Partitioning is skipped.", ns);
+            return Collections.emptyList();
+        }
+        BsonDocument shardKeyPattern = metadata.getDocument("key");
+        if (shardKeyPattern.size() != 1 || !shardKeyPattern.get(shardKeyPattern.getFirstKey()).isNumber()) {
+            throw new ConfigException(String.format("partition_method 'chunks' supports only a single ranged shard key, but '%s' is sharded by %s",
+                    ns, shardKeyPattern.toJson()));
+        }
+        String shardKey = shardKeyPattern.getFirstKey();
+
+        Map<String, String> shardHosts = new HashMap<>();
+        for (BsonDocument shard : configDb.getCollection("shards", BsonDocument.class).find()) {
+            shardHosts.put(shard.getString("_id").getValue(), shard.getString("host").getValue());
+        }
+
+        // Chunks are identified by the collection UUID instead of the namespace since MongoDB 5.0
+        BsonDocument chunkFilter = new BsonDocument("ns", new BsonString(ns));
+        if (metadata.containsKey("uuid")) {
+            chunkFilter = new BsonDocument("$or", new BsonArray(Arrays.<BsonValue>asList(
+                    chunkFilter, new BsonDocument("uuid", metadata.get("uuid")))));
+        }
+
+        List<BsonValue> boundaries = new ArrayList<>();
+        List<String> owners = new ArrayList<>();
+        for (BsonDocument chunk : configDb.getCollection("chunks", BsonDocument.class)
+                .find(chunkFilter)
+                .sort(new BsonDocument("min", new BsonInt32(1)))) {
+            String shard = chunk.getString("shard").getValue();
+            if (owners.isEmpty()) {
+                owners.add(shard);
+            }
+            else if (!owners.get(owners.size() - 1).equals(shard)) {
+                boundaries.add(chunk.getDocument("min").get(shardKey));
+                owners.add(shard);
+            }
+        }
+
+        List<Partition> ranges = toPartitions(shardKey, boundaries);
+        if (ranges.isEmpty() && !owners.isEmpty()) {
+            ranges.add(new Partition("{}"));
+        }
+        List<Partition> partitions = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            String shard = owners.get(i);
+            partitions.add(new Partition(ranges.get(i).getFilter(), shard, shardHosts.get(shard)));
+        }
+        return partitions;
+    }
+
+    // The server computes split points from the index on the field so that every range has about the same size.
+    // It is not available through mongos.
+    private List<BsonValue> splitVectorBoundaries(int partitionCount)
+    {
+        BsonDocument command = new BsonDocument("splitVector", new BsonString(collection.getNamespace().getFullName()))
+                .append("keyPattern", new BsonDocument(field, new BsonInt32(1)));
+        if (task.getDocumentsPerPartition().isPresent()) {
+            long size = collectionStats().getNumber("size", new BsonInt64(0)).longValue();
+            command.append("maxChunkObjects", new BsonInt64(task.getDocumentsPerPartition().get()));
+            command.append("maxChunkSizeBytes", new BsonInt64(Math.max(1, size)));
+        }
+        else if (task.getBytesPerPartition().isPresent()) {
+            command.append("maxChunkSizeBytes", new BsonInt64(task.getBytesPerPartition().get()));
+        }
+        else {
+            long size = collectionStats().getNumber("size", new BsonInt64(0)).longValue();
+            command.append("maxChunkSizeBytes", new BsonInt64(Math.max(1, size / partitionCount)));
+        }
+
+        BsonDocument result;
+        try {
+            result = db.runCommand(command, BsonDocument.class);
+        }
+        catch (MongoCommandException ex) {
+            throw new ConfigException(String.format("splitVector command failed. Use other partition_method for sharded collections or collections without an index on '%s'. [%s]",
+                    field, ex.getErrorMessage()), ex);
+        }
+
+        List<BsonValue> boundaries = new ArrayList<>();
+        for (BsonValue key : result.getArray("splitKeys", new BsonArray())) {
+            addIfIncreasing(boundaries, key.asDocument().get(field));
+        }
+        return boundaries;
+    }
+
+    private List<BsonValue> bucketAutoBoundaries(int partitionCount)
+    {
+        List<BsonDocument> pipeline = new ArrayList<>();
+        pipeline.add(new BsonDocument("$match", query));
+        pipeline.add(new BsonDocument("$bucketAuto", new BsonDocument("groupBy", new BsonString("$" + field))
+                .append("buckets", new BsonInt32(partitionCount))));
+
+        List<BsonValue> boundaries = new ArrayList<>();
+        boolean first = true;
+        for (BsonDocument bucket : collection.aggregate(pipeline).allowDiskUse(true)) {
+            if (!first) {
+                addIfIncreasing(boundaries, bucket.getDocument("_id").get("min"));
+            }
+            first = false;
+        }
+        return boundaries;
+    }
+
+    // Estimates quantiles of the field from random samples sorted by the server.
+    private List<BsonValue> sampleBoundaries(int partitionCount)
+    {
+        int sampleSize = partitionCount * SAMPLES_PER_PARTITION;
+        List<BsonDocument> pipeline = new ArrayList<>();
+        if (!query.isEmpty()) {
+            pipeline.add(new BsonDocument("$match", query));
+        }
+        pipeline.add(new BsonDocument("$sample", new BsonDocument("size", new BsonInt32(sampleSize))));
+        pipeline.add(new BsonDocument("$project", new BsonDocument("_id", new BsonInt32(0)).append("v", new BsonString("$" + field))));
+        pipeline.add(new BsonDocument("$match", new BsonDocument("v", new BsonDocument("$exists", BsonBoolean.TRUE))));
+        pipeline.add(new BsonDocument("$sort", new BsonDocument("v", new BsonInt32(1))));
+
+        List<BsonValue> samples = new ArrayList<>();
+        for (BsonDocument doc : collection.aggregate(pipeline).allowDiskUse(true)) {
+            samples.add(doc.get("v"));
+        }
+
+        List<BsonValue> boundaries = new ArrayList<>();
+        if (samples.isEmpty()) {
+            log.warn("No document has '{}' field. Partitioning is skipped.", field);
+            return boundaries;
+        }
+        for (int i = 1; i < partitionCount; i++) {
+            addIfIncreasing(boundaries, samples.get(samples.size() * i / partitionCount));
+        }
+        return boundaries;
+    }
+
+    private List<BsonValue> interpolateBoundaries(int partitionCount)
+    {
+        BsonValue min = findEdge(1);
+        BsonValue max = findEdge(-1);
+        List<BsonValue> boundaries = new ArrayList<>();
+        if (min == null || max == null) {
+            log.warn("No document has '{}' field. Partitioning is skipped.", field);
+            return boundaries;
+        }
+
+        if (min.isNumber() && max.isNumber()) {
+            if (min.isDouble() || max.isDouble()) {
+                double lo = min.asNumber().doubleValue();
+                double span = max.asNumber().doubleValue() - lo;
+                for (int i = 1; i < partitionCount; i++) {
+                    addIfIncreasing(boundaries, new BsonDouble(lo + span * i / partitionCount));
+                }
+            }
+            else {
+                long lo = min.asNumber().longValue();
+                double span = (double) max.asNumber().longValue() - (double) lo;
+                for (int i = 1; i < partitionCount; i++) {
+                    addIfIncreasing(boundaries, new BsonInt64(lo + (long) (span * i / partitionCount)));
+                }
+            }
+        }
+        else if (min.isDateTime() && max.isDateTime()) {
+            long lo = min.asDateTime().getValue();
+            double span = (double) max.asDateTime().getValue() - (double) lo;
+            for (int i = 1; i < partitionCount; i++) {
+                addIfIncreasing(boundaries, new BsonDateTime(lo + (long) (span * i / partitionCount)));
+            }
+        }
+        else if (min.isObjectId() && max.isObjectId()) {
+            // Only the leading timestamp of ObjectId is meaningful to interpolate.
+            long lo = min.asObjectId().getValue().getTimestamp();
+            long span = max.asObjectId().getValue().getTimestamp() - lo;
+            for (int i = 1; i < partitionCount; i++) {
+                int timestamp = (int) (lo + span * i / partitionCount);
+                addIfIncreasing(boundaries, new BsonObjectId(new ObjectId(timestamp, 0, (short) 0, 0)));
+            }
+        }
+        else {
+            log.warn("Field '{}' has unsupported types for partitioning [{}, {}]. Partitioning is skipped.",
+                    field, min.getBsonType(), max.getBsonType());
+        }
+        return boundaries;
+    }
+
+    private BsonValue findEdge(int direction)
+    {
+        BsonDocument projection = new BsonDocument(field, new BsonInt32(1));
+        if (!field.equals("_id")) {
+            projection.append("_id", new BsonInt32(0));
+        }
+        BsonDocument doc = collection.find(Filters.and(query, Filters.exists(field)))
+                .projection(projection)
+                .sort(new BsonDocument(field, new BsonInt32(direction)))
+                .limit(1)
+                .first();
+        return doc == null ? null : getPath(doc, field);
+    }
+
+    private static BsonValue getPath(BsonDocument doc, String path)
+    {
+        BsonValue value = doc;
+        for (String name : path.split("\\.")) {
+            if (value == null || !value.isDocument()) {
+                return null;
+            }
+            value = value.asDocument().get(name);
+        }
+        return value;
+    }
+
+    private static void addIfIncreasing(List<BsonValue> boundaries, BsonValue value)
+    {
+        if (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(value)) {
+            boundaries.add(value);
+        }
+    }
+}
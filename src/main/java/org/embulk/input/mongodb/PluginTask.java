@@ -69,13 +69,75 @@ public interface PluginTask
     @ConfigDefault("null")
     Optional<String> getDatabase();
 
+    // Connection options of both `uri` and `hosts`. Options written in `uri` take precedence.
+    @Config("max_pool_size")
+    @ConfigDefault("null")
+    Optional<Integer> getMaxPoolSize();
+
+    @Config("min_pool_size")
+    @ConfigDefault("null")
+    Optional<Integer> getMinPoolSize();
+
+    @Config("max_wait_time_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getMaxWaitTimeMillis();
+
+    @Config("max_connection_idle_time_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getMaxConnectionIdleTimeMillis();
+
+    @Config("max_connection_life_time_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getMaxConnectionLifeTimeMillis();
+
+    @Config("connect_timeout_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getConnectTimeoutMillis();
+
+    @Config("socket_timeout_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getSocketTimeoutMillis();
+
+    @Config("server_selection_timeout_millis")
+    @ConfigDefault("null")
+    Optional<Integer> getServerSelectionTimeoutMillis();
+
+    @Config("socket_keep_alive")
+    @ConfigDefault("null")
+    Optional<Boolean> getSocketKeepAlive();
+
+    // Wire protocol compressors in the order of preference: snappy, zlib
+    @Config("compressors")
+    @ConfigDefault("[]")
+    List<String> getCompressors();
+
+    @Config("zlib_compression_level")
+    @ConfigDefault("null")
+    Optional<Integer> getZlibCompressionLevel();
+
     @Config("collection")
     String getCollection();
 
+    // Whether to query documents, to read change events of the collection, or both
+    @Config("mode")
+    @ConfigDefault("\"query\"")
+    ReadMode getMode();
+
     @Config("fields")
     @ConfigDefault("null")
     Optional<SchemaConfig> getFields();
 
+    // Typed columns read from the paths of documents, instead of one JSON column
+    @Config("columns")
+    @ConfigDefault("null")
+    Optional<SchemaConfig> getColumns();
+
+    // Number of documents sampled by guess to propose `columns`
+    @Config("guess_sample_size")
+    @ConfigDefault("1000")
+    @Min(1)
+    int getGuessSampleSize();
+
     @Config("projection")
     @ConfigDefault("\"{}\"")
     String getProjection();
@@ -89,6 +151,69 @@ public interface PluginTask
     @ConfigDefault("null")
     Optional<String> getAggregation();
 
+    // Lets the server write temporary files for $group and $sort stages over the 100MB memory limit
+    @Config("allow_disk_use")
+    @ConfigDefault("false")
+    boolean getAllowDiskUse();
+
+    @Config("max_time_ms")
+    @ConfigDefault("null")
+    Optional<Long> getMaxTimeMs();
+
+    // Index to use, as a key pattern such as {"field": 1}
+    @Config("hint")
+    @ConfigDefault("null")
+    Optional<String> getHint();
+
+    // Shown in the profiler and currentOp to find queries of this plugin
+    @Config("comment")
+    @ConfigDefault("null")
+    Optional<String> getComment();
+
+    // Inclusive lower and exclusive upper bounds of the index of `hint`
+    @Config("min")
+    @ConfigDefault("null")
+    Optional<String> getMin();
+
+    @Config("max")
+    @ConfigDefault("null")
+    Optional<String> getMax();
+
+    @Config("read_concern")
+    @ConfigDefault("null")
+    Optional<String> getReadConcern();
+
+    // Members to read from, one of primary, primary_preferred, secondary, secondary_preferred and nearest
+    @Config("read_preference")
+    @ConfigDefault("null")
+    Optional<String> getReadPreference();
+
+    // Tag sets of members in the order of preference, such as [{"nodeType": "ANALYTICS"}, {}]
+    @Config("read_preference_tags")
+    @ConfigDefault("[]")
+    List<Map<String, String>> getReadPreferenceTags();
+
+    @Config("max_staleness_seconds")
+    @ConfigDefault("null")
+    Optional<Long> getMaxStalenessSeconds();
+
+    // Connect each partition task directly to one of the secondaries in turn
+    @Config("spread_partitions")
+    @ConfigDefault("false")
+    boolean getSpreadPartitions();
+
+    @Config("no_cursor_timeout")
+    @ConfigDefault("false")
+    boolean getNoCursorTimeout();
+
+    @Config("return_key")
+    @ConfigDefault("false")
+    boolean getReturnKey();
+
+    @Config("show_record_id")
+    @ConfigDefault("false")
+    boolean getShowRecordId();
+
     @Config("sort")
     @ConfigDefault("\"{}\"")
     String getSort();
@@ -111,10 +236,69 @@ public interface PluginTask
     @Min(1)
     int getBatchSize();
 
+    // Number of batches of `batch_size` documents read ahead on a background thread. 0 reads on the task thread.
+    @Config("prefetch_batches")
+    @ConfigDefault("0")
+    @Min(0)
+    int getPrefetchBatches();
+
+    // Number of threads to decode documents read ahead
+    @Config("decode_threads")
+    @ConfigDefault("1")
+    @Min(1)
+    int getDecodeThreads();
+
+    // Emit documents in the order of the cursor with `decode_threads`
+    @Config("preserve_order")
+    @ConfigDefault("true")
+    boolean getPreserveOrder();
+
+    // Save the _id of the last emitted document in this directory, and resume from it when the task is retried
+    @Config("checkpoint_directory")
+    @ConfigDefault("null")
+    Optional<String> getCheckpointDirectory();
+
+    // Number of documents emitted between checkpoints
+    @Config("checkpoint_interval")
+    @ConfigDefault("100000")
+    @Min(1)
+    int getCheckpointInterval();
+
+    // Number of times to re-open the cursor after the last emitted document on transient errors
+    @Config("cursor_retry_limit")
+    @ConfigDefault("0")
+    @Min(0)
+    int getCursorRetryLimit();
+
+    @Config("cursor_retry_initial_wait_millis")
+    @ConfigDefault("1000")
+    @Min(0)
+    long getCursorRetryInitialWaitMillis();
+
+    @Config("cursor_retry_max_wait_millis")
+    @ConfigDefault("60000")
+    @Min(0)
+    long getCursorRetryMaxWaitMillis();
+
+    // How DATE_TIME values in JSON are written: iso8601 or epoch_millis
+    @Config("date_time_output")
+    @ConfigDefault("\"iso8601\"")
+    String getDateTimeOutput();
+
+    // How values of each BSON type are written in JSON, such as {"decimal128": "extended_json"}
+    @Config("type_mapping")
+    @ConfigDefault("{}")
+    Map<String, TypeMapping> getTypeMapping();
+
     @Config("stop_on_invalid_record")
     @ConfigDefault("false")
     boolean getStopOnInvalidRecord();
 
+    // drop_field, null_field, drop_document or fail. stop_on_invalid_record: true is the same as fail.
+    @Config("on_unsupported_value")
+    @ConfigDefault("\"drop_field\"")
+    UnsupportedValuePolicy getOnUnsupportedValue();
+
     @Config("json_column_name")
     @ConfigDefault("\"record\"")
     String getJsonColumnName();
@@ -126,4 +310,83 @@ public interface PluginTask
     @Config("last_record")
     @ConfigDefault("null")
     Optional<Map<String, Object>> getLastRecord();
+
+    // Position of `mode: change_stream` saved in the ConfigDiff. The resume token takes precedence.
+    @Config("resume_token")
+    @ConfigDefault("null")
+    Optional<Map<String, Object>> getResumeToken();
+
+    @Config("start_at_operation_time")
+    @ConfigDefault("null")
+    Optional<Map<String, Object>> getStartAtOperationTime();
+    void setStartAtOperationTime(Optional<Map<String, Object>> startAtOperationTime);
+
+    // Position of `mode: oplog` saved in the ConfigDiff
+    @Config("oplog_timestamp")
+    @ConfigDefault("null")
+    Optional<Map<String, Object>> getOplogTimestamp();
+    void setOplogTimestamp(Optional<Map<String, Object>> oplogTimestamp);
+
+    // Either "default" or "update_lookup" to include the current document in update events
+    @Config("full_document")
+    @ConfigDefault("\"update_lookup\"")
+    String getFullDocument();
+
+    // A change stream or the oplog is read until one of these bounds is reached
+    @Config("stream_max_records")
+    @ConfigDefault("null")
+    Optional<Long> getStreamMaxRecords();
+
+    @Config("stream_max_duration_seconds")
+    @ConfigDefault("null")
+    Optional<Long> getStreamMaxDurationSeconds();
+
+    @Config("stream_idle_timeout_seconds")
+    @ConfigDefault("10")
+    @Min(1)
+    long getStreamIdleTimeoutSeconds();
+
+    // Number of tasks to split the collection into by ranges of `partition_field`
+    @Config("partition_count")
+    @ConfigDefault("1")
+    @Min(1)
+    int getPartitionCount();
+
+    @Config("partition_field")
+    @ConfigDefault("\"_id\"")
+    String getPartitionField();
+
+    @Config("partition_method")
+    @ConfigDefault("\"interpolate\"")
+    PartitionMethod getPartitionMethod();
+
+    // Derive the number of partitions from the collection stats instead of `partition_count`
+    @Config("documents_per_partition")
+    @ConfigDefault("null")
+    Optional<Long> getDocumentsPerPartition();
+
+    @Config("bytes_per_partition")
+    @ConfigDefault("null")
+    Optional<Long> getBytesPerPartition();
+
+    // Log the collection stats in the transaction, which are reused for planning partitions
+    @Config("collect_stats")
+    @ConfigDefault("false")
+    boolean getCollectStats();
+
+    // Read each partition of `partition_method: chunks` directly from its shard instead of through mongos
+    @Config("connect_to_shards")
+    @ConfigDefault("false")
+    boolean getConnectToShards();
+
+    List<Partition> getPartitions();
+    void setPartitions(List<Partition> partitions);
+
+    // Secondaries to spread partitions across, in "<host>:<port>" form
+    List<String> getReadHosts();
+    void setReadHosts(List<String> readHosts);
+
+    // QueryPlan built in the transaction, in base64-encoded BSON
+    String getPlan();
+    void setPlan(String plan);
 }
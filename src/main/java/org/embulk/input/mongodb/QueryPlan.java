@@ -0,0 +1,160 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.json.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+
+// The query, projection, sort, aggregation pipeline and partition filters parsed once in the transaction.
+// The plan is passed to tasks as base64-encoded BSON in the TaskSource, so that every task reads it without
+// parsing JSON and runs exactly the same plan. Values are read from the raw BSON lazily.
+public class QueryPlan
+{
+    private final BsonDocument plan;
+
+    private QueryPlan(BsonDocument plan)
+    {
+        this.plan = plan;
+    }
+
+    public static QueryPlan build(BsonDocument query, BsonDocument projection, BsonDocument sort, Optional<BsonDocument> hint,
+            Optional<BsonDocument> min, Optional<BsonDocument> max, Optional<List<BsonDocument>> pipeline, List<Partition> partitions)
+    {
+        BsonDocument plan = new BsonDocument("query", query)
+                .append("projection", projection)
+                .append("sort", sort);
+        if (hint.isPresent()) {
+            plan.append("hint", hint.get());
+        }
+        if (min.isPresent()) {
+            plan.append("min", min.get());
+        }
+        if (max.isPresent()) {
+            plan.append("max", max.get());
+        }
+        if (pipeline.isPresent()) {
+            plan.append("pipeline", new BsonArray(pipeline.get()));
+        }
+        BsonArray filters = new BsonArray();
+        for (Partition partition : partitions) {
+            filters.add(partition.toFilter());
+        }
+        plan.append("partitions", filters);
+        return new QueryPlan(plan);
+    }
+
+    // `aggregation` is either a stage document or an array of stages
+    public static List<BsonDocument> parsePipeline(String json)
+    {
+        List<BsonDocument> pipeline = new ArrayList<>();
+        if (json.trim().startsWith("[")) {
+            for (BsonValue stage : BsonDocument.parse("{\"pipeline\": " + json + "}").getArray("pipeline")) {
+                if (!stage.isDocument()) {
+                    throw new JsonParseException("Each stage of aggregation must be a document");
+                }
+                pipeline.add(stage.asDocument());
+            }
+        }
+        else {
+            pipeline.add(BsonDocument.parse(json));
+        }
+        return pipeline;
+    }
+
+    public static QueryPlan decode(String encoded)
+    {
+        return new QueryPlan(new RawBsonDocument(Base64.getDecoder().decode(encoded)));
+    }
+
+    public String encode()
+    {
+        ByteBuf buffer = new RawBsonDocument(plan, new BsonDocumentCodec()).getByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    public BsonDocument getQuery()
+    {
+        return plan.getDocument("query");
+    }
+
+    public BsonDocument getProjection()
+    {
+        return plan.getDocument("projection");
+    }
+
+    public BsonDocument getSort()
+    {
+        return plan.getDocument("sort");
+    }
+
+    public Optional<BsonDocument> getHint()
+    {
+        return getOptional("hint");
+    }
+
+    public Optional<BsonDocument> getMin()
+    {
+        return getOptional("min");
+    }
+
+    public Optional<BsonDocument> getMax()
+    {
+        return getOptional("max");
+    }
+
+    public Optional<List<BsonDocument>> getPipeline()
+    {
+        if (!plan.containsKey("pipeline")) {
+            return Optional.empty();
+        }
+        List<BsonDocument> pipeline = new ArrayList<>();
+        for (BsonValue stage : plan.getArray("pipeline")) {
+            pipeline.add(stage.asDocument());
+        }
+        return Optional.of(pipeline);
+    }
+
+    private Optional<BsonDocument> getOptional(String name)
+    {
+        if (!plan.containsKey(name)) {
+            return Optional.empty();
+        }
+        return Optional.of(plan.getDocument(name));
+    }
+
+    // The range of the partition read by the task
+    public Optional<BsonDocument> getPartitionFilter(int taskIndex)
+    {
+        BsonArray filters = plan.getArray("partitions");
+        if (taskIndex >= filters.size()) {
+            return Optional.empty();
+        }
+        return Optional.of(filters.get(taskIndex).asDocument());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+public enum ReadMode
+{
+    QUERY,
+    CHANGE_STREAM,
+    OPLOG,
+    SNAPSHOT_CHANGE_STREAM;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static ReadMode fromString(String value)
+    {
+        switch (value.replace("-", "_")) {
+            case "query":
+                return QUERY;
+            case "change_stream":
+                return CHANGE_STREAM;
+            case "oplog":
+                return OPLOG;
+            case "snapshot_change_stream":
+                return SNAPSHOT_CHANGE_STREAM;
+            default:
+                throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are query, change_stream, oplog, snapshot_change_stream", value));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Proposes `columns` from the types of fields found in a sample of documents.
+// Embedded documents are flattened into dotted paths, and conflicting types are widened.
+public class SchemaGuesser
+{
+    private static final Logger log = LoggerFactory.getLogger(SchemaGuesser.class);
+
+    // Embedded documents deeper than this are guessed as json columns
+    private static final int MAX_DEPTH = 3;
+
+    // Pseudo type of paths which have embedded documents to flatten
+    private static final String DOCUMENT = "document";
+
+    private final PluginTask task;
+    private final Map<String, String> types = new LinkedHashMap<>();
+
+    public SchemaGuesser(PluginTask task)
+    {
+        this.task = task;
+    }
+
+    public List<Map<String, Object>> guess(MongoDatabase db)
+    {
+        MongoCollection<BsonDocument> collection = db.getCollection(task.getCollection(), BsonDocument.class);
+        List<BsonDocument> pipeline = new ArrayList<>();
+        if (task.getAggregation().isPresent()) {
+            pipeline.addAll(QueryPlan.parsePipeline(task.getAggregation().get()));
+        }
+        else if (!task.getQuery().equals("{}")) {
+            pipeline.add(new BsonDocument("$match", BsonDocument.parse(task.getQuery())));
+        }
+        if (!task.getProjection().equals("{}")) {
+            pipeline.add(new BsonDocument("$project", BsonDocument.parse(task.getProjection())));
+        }
+        pipeline.add(new BsonDocument("$sample", new BsonDocument("size", new BsonInt32(task.getGuessSampleSize()))));
+
+        int count = 0;
+        for (BsonDocument document : collection.aggregate(pipeline).allowDiskUse(true)) {
+            addDocument(document);
+            count++;
+        }
+        List<Map<String, Object>> columns = toColumns();
+        log.info("Guessed {} columns from {} documents", columns.size(), count);
+        return columns;
+    }
+
+    void addDocument(BsonDocument document)
+    {
+        addDocument("", document, 1);
+    }
+
+    private void addDocument(String prefix, BsonDocument document, int depth)
+    {
+        for (Map.Entry<String, BsonValue> field : document.entrySet()) {
+            String path = prefix + field.getKey();
+            BsonValue value = field.getValue();
+            if (value.getBsonType() == BsonType.DOCUMENT && depth < MAX_DEPTH) {
+                addType(path, DOCUMENT);
+                if (DOCUMENT.equals(types.get(path))) {
+                    addDocument(path + ".", value.asDocument(), depth + 1);
+                }
+            }
+            else {
+                String type = typeOf(value.getBsonType());
+                if (type != null) {
+                    addType(path, type);
+                }
+            }
+        }
+    }
+
+    private void addType(String path, String type)
+    {
+        String current = types.get(path);
+        String merged = current == null ? type : merge(current, type);
+        types.put(path, merged);
+        if (DOCUMENT.equals(current) && !DOCUMENT.equals(merged)) {
+            // A path which is a document in some documents and a scalar in others is read as a whole
+            types.keySet().removeIf(key -> key.startsWith(path + "."));
+        }
+    }
+
+    // Column type of each BSON type as ValueCodec formats it in the JSON column. null is unknown yet.
+    static String typeOf(BsonType type)
+    {
+        switch (type) {
+            case BOOLEAN:
+                return "boolean";
+            case INT32:
+            case INT64:
+            case TIMESTAMP:
+                return "long";
+            case DOUBLE:
+            case DECIMAL128:
+                return "double";
+            case DATE_TIME:
+                return "timestamp";
+            case STRING:
+            case SYMBOL:
+            case OBJECT_ID:
+            case BINARY:
+            case REGULAR_EXPRESSION:
+            case JAVASCRIPT:
+            case JAVASCRIPT_WITH_SCOPE:
+                return "string";
+            case ARRAY:
+            case DOCUMENT:
+                return "json";
+            default: // NULL, and types which can't be loaded
+                return null;
+        }
+    }
+
+    // Widens conflicting types to the narrowest type which can hold both
+    static String merge(String a, String b)
+    {
+        if (a.equals(b)) {
+            return a;
+        }
+        if (a.equals("json") || b.equals("json") || a.equals(DOCUMENT) || b.equals(DOCUMENT)) {
+            return "json";
+        }
+        if (isNumeric(a) && isNumeric(b)) {
+            return a.equals("double") || b.equals("double") ? "double" : "long";
+        }
+        return "string";
+    }
+
+    private static boolean isNumeric(String type)
+    {
+        return type.equals("boolean") || type.equals("long") || type.equals("double");
+    }
+
+    private List<Map<String, Object>> toColumns()
+    {
+        Map<String, String> names = toColumnNames();
+        List<Map<String, Object>> columns = new ArrayList<>();
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            if (entry.getValue().equals(DOCUMENT)) {
+                continue;
+            }
+            String path = entry.getKey();
+            String name = names.get(path);
+            Map<String, Object> column = new LinkedHashMap<>();
+            column.put("name", name);
+            column.put("type", entry.getValue());
+            if (!path.equals("_id") && !name.equals(path)) {
+                column.put("path", path);
+            }
+            columns.add(column);
+        }
+        return columns;
+    }
+
+    // Column names by path. `a.b` is flattened into `a_b`, which can collide with a field named `a_b` or with `id_field_name`.
+    // _id and top-level fields keep their names, and a flattened name is given a numeric suffix on a collision.
+    private Map<String, String> toColumnNames()
+    {
+        Map<String, String> names = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+        if (types.containsKey("_id") && !types.get("_id").equals(DOCUMENT)) {
+            names.put("_id", uniqueName(task.getIdFieldName(), taken));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map.Entry<String, String> entry : types.entrySet()) {
+                String path = entry.getKey();
+                if (path.equals("_id") || entry.getValue().equals(DOCUMENT) || path.contains(".") != (pass == 1)) {
+                    continue;
+                }
+                names.put(path, uniqueName(path.replace('.', '_'), taken));
+            }
+        }
+        return names;
+    }
+
+    private static String uniqueName(String name, Set<String> taken)
+    {
+        String unique = name;
+        for (int i = 2; !taken.add(unique); i++) {
+            unique = name + "_" + i;
+        }
+        return unique;
+    }
+}
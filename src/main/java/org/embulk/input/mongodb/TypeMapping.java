@@ -0,0 +1,119 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.bson.BsonType;
+import org.embulk.config.ConfigException;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// How values of a BSON type are written in JSON, configured by `type_mapping`
+public enum TypeMapping
+{
+    // A JSON string, such as the hex of an ObjectId or an ISO 8601 date
+    STRING,
+    // A lossless Extended JSON object, such as {"$numberDecimal": "1.10"}
+    EXTENDED_JSON,
+    // The closest JSON type, such as a number of epoch milliseconds for a date
+    NATIVE,
+    // Not loaded, as values of unknown types
+    UNSUPPORTED;
+
+    // Types loaded before `type_mapping` keep their forms. MIN_KEY, MAX_KEY and DB_POINTER used to be unsupported.
+    // UNDEFINED is still unsupported unless it's mapped.
+    private static final Map<BsonType, TypeMapping> DEFAULTS = new EnumMap<>(BsonType.class);
+    // Types without a natural string or native form
+    private static final Set<BsonType> NO_STRING = EnumSet.of(BsonType.DOCUMENT, BsonType.ARRAY, BsonType.NULL, BsonType.UNDEFINED);
+    private static final Set<BsonType> NO_NATIVE = EnumSet.of(BsonType.OBJECT_ID, BsonType.REGULAR_EXPRESSION, BsonType.JAVASCRIPT,
+            BsonType.JAVASCRIPT_WITH_SCOPE, BsonType.SYMBOL, BsonType.MIN_KEY, BsonType.MAX_KEY, BsonType.DB_POINTER);
+
+    static {
+        for (BsonType type : Arrays.asList(BsonType.DOUBLE, BsonType.INT32, BsonType.INT64, BsonType.BOOLEAN, BsonType.NULL,
+                BsonType.BINARY, BsonType.TIMESTAMP, BsonType.DOCUMENT, BsonType.ARRAY)) {
+            DEFAULTS.put(type, NATIVE);
+        }
+        for (BsonType type : Arrays.asList(BsonType.STRING, BsonType.OBJECT_ID, BsonType.DATE_TIME, BsonType.REGULAR_EXPRESSION,
+                BsonType.JAVASCRIPT, BsonType.JAVASCRIPT_WITH_SCOPE, BsonType.SYMBOL, BsonType.DECIMAL128)) {
+            DEFAULTS.put(type, STRING);
+        }
+        for (BsonType type : Arrays.asList(BsonType.MIN_KEY, BsonType.MAX_KEY, BsonType.DB_POINTER)) {
+            DEFAULTS.put(type, EXTENDED_JSON);
+        }
+        DEFAULTS.put(BsonType.UNDEFINED, UNSUPPORTED);
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static TypeMapping fromString(String value)
+    {
+        switch (value.replace("-", "_")) {
+            case "string":
+                return STRING;
+            case "extended_json":
+                return EXTENDED_JSON;
+            case "native":
+                return NATIVE;
+            case "unsupported":
+                return UNSUPPORTED;
+            default:
+                throw new ConfigException(String.format("Unknown type_mapping '%s'. Supported type_mapping are string, extended_json, native, unsupported", value));
+        }
+    }
+
+    // The mapping of every supported BSON type, from the defaults, `date_time_output` and `type_mapping`
+    static Map<BsonType, TypeMapping> resolve(PluginTask task)
+    {
+        Map<BsonType, TypeMapping> mappings = new EnumMap<>(DEFAULTS);
+        if (ValueCodec.isEpochMillis(task)) {
+            mappings.put(BsonType.DATE_TIME, NATIVE);
+        }
+        for (Map.Entry<String, TypeMapping> entry : task.getTypeMapping().entrySet()) {
+            BsonType type = toBsonType(entry.getKey());
+            TypeMapping mapping = entry.getValue();
+            if ((mapping == STRING && NO_STRING.contains(type)) || (mapping == NATIVE && NO_NATIVE.contains(type))
+                    || (mapping == EXTENDED_JSON && (type == BsonType.DOCUMENT || type == BsonType.ARRAY))) {
+                throw new ConfigException(String.format("%s can't be mapped to %s", entry.getKey(), mapping));
+            }
+            mappings.put(type, mapping);
+        }
+        return mappings;
+    }
+
+    private static BsonType toBsonType(String name)
+    {
+        String upper = name.replace("-", "_").toUpperCase(Locale.ENGLISH);
+        for (BsonType type : DEFAULTS.keySet()) {
+            if (type.name().equals(upper)) {
+                return type;
+            }
+        }
+        throw new ConfigException(String.format("Unknown BSON type '%s' in type_mapping. Supported types are %s", name, DEFAULTS.keySet().toString().toLowerCase(Locale.ENGLISH)));
+    }
+}
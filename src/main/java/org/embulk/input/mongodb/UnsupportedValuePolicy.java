@@ -0,0 +1,66 @@
+/*
+ * Copyright 2026 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+// What to do with a value which can't be loaded, configured by `on_unsupported_value`
+public enum UnsupportedValuePolicy
+{
+    // Skip the field, or set null to the column
+    DROP_FIELD,
+    // Set null to the field or the column
+    NULL_FIELD,
+    // Skip the whole document
+    DROP_DOCUMENT,
+    // Fail the task
+    FAIL;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static UnsupportedValuePolicy fromString(String value)
+    {
+        switch (value.replace("-", "_")) {
+            case "drop_field":
+                return DROP_FIELD;
+            case "null_field":
+                return NULL_FIELD;
+            case "drop_document":
+                return DROP_DOCUMENT;
+            case "fail":
+                return FAIL;
+            default:
+                throw new ConfigException(String.format("Unknown on_unsupported_value '%s'. Supported on_unsupported_value are drop_field, null_field, drop_document, fail", value));
+        }
+    }
+
+    // `stop_on_invalid_record: true` is the same as `on_unsupported_value: fail`
+    static UnsupportedValuePolicy of(PluginTask task)
+    {
+        return task.getStopOnInvalidRecord() ? FAIL : task.getOnUnsupportedValue();
+    }
+}
@@ -16,26 +16,39 @@
 
 package org.embulk.input.mongodb;
 
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDbPointer;
 import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
 import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonValueCodec;
 import org.bson.codecs.Codec;
 import org.bson.codecs.DecoderContext;
 import org.bson.codecs.EncoderContext;
+import org.bson.io.BsonInput;
+import org.bson.io.BsonInputMark;
+import org.embulk.config.ConfigException;
 import org.embulk.spi.DataException;
+import org.msgpack.value.StringValue;
 import org.msgpack.value.Value;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.TimeZone;
+import java.util.function.Function;
 import static org.msgpack.value.ValueFactory.newArray;
 import static org.msgpack.value.ValueFactory.newBinary;
 import static org.msgpack.value.ValueFactory.newBoolean;
@@ -47,24 +60,90 @@ import static org.msgpack.value.ValueFactory.newString;
 
 public class ValueCodec implements Codec<Value>
 {
-    private final SimpleDateFormat formatter;
-    private final Logger log = LoggerFactory.getLogger(MongodbInputPlugin.class);
-    private final boolean stopOnInvalidRecord;
+    private final UnsupportedValuePolicy policy;
     private final PluginTask task;
-    private final Optional<List<String>> incrementalField;
-    private Map<String, Object> lastRecord;
     private long processedRecordCount = 0;
-    private Map<String, String> lastRecordType;
+
+    // The type of the last value which couldn't be read, and whether the current document is dropped by `on_unsupported_value`
+    private BsonType unsupportedType;
+    private boolean dropped;
+    // Numbers of unsupported values by field and type, reported instead of logging each of them
+    private final Map<String, Map<BsonType, Long>> unsupportedValues = new LinkedHashMap<>();
+
+    // BSON values of `incremental_field` of the last document, by the position in `incremental_field`.
+    // They are kept apart from the values of `type_mapping`, so that `last_record` can be queried again.
+    // Values of the current document are pending until it's known not to be dropped.
+    private final String[] trackedFields;
+    private final StringValue[] trackedNames;
+    private final TrackedValue[] trackedValues;
+    private final TrackedValue[] pendingValues;
+    private static final BsonValueCodec BSON_VALUE_CODEC = new BsonValueCodec();
+
+    private static final int MAX_CACHED_FIELD_NAMES = 10000;
+    private final Map<String, StringValue> fieldNames;
+    private final StringValue idFieldName;
+    private final boolean renamesId;
+    private Value[] stack = new Value[64];
+    private int top = 0;
+
+    // Readers of values by the BSON type byte, built from `type_mapping` once
+    private final ValueReader[] readers = new ValueReader[256];
+    private final ValueReader anyValueReader = this::readValue;
+
+    private static final StringValue OID = newString("$oid");
+    private static final StringValue DATE = newString("$date");
+    private static final StringValue NUMBER_INT = newString("$numberInt");
+    private static final StringValue NUMBER_LONG = newString("$numberLong");
+    private static final StringValue NUMBER_DOUBLE = newString("$numberDouble");
+    private static final StringValue NUMBER_DECIMAL = newString("$numberDecimal");
+    private static final StringValue SYMBOL = newString("$symbol");
+    private static final StringValue CODE = newString("$code");
+    private static final StringValue SCOPE = newString("$scope");
+    private static final StringValue REGULAR_EXPRESSION = newString("$regularExpression");
+    private static final StringValue PATTERN = newString("pattern");
+    private static final StringValue OPTIONS = newString("options");
+    private static final StringValue TIMESTAMP = newString("$timestamp");
+    private static final StringValue T = newString("t");
+    private static final StringValue I = newString("i");
+    private static final StringValue BINARY = newString("$binary");
+    private static final StringValue BASE64 = newString("base64");
+    private static final StringValue SUB_TYPE = newString("subType");
+    private static final StringValue MIN_KEY = newString("$minKey");
+    private static final StringValue MAX_KEY = newString("$maxKey");
+    private static final StringValue DB_POINTER = newString("$dbPointer");
+    private static final StringValue REF = newString("$ref");
+    private static final StringValue ID = newString("$id");
+    private static final StringValue UNDEFINED = newString("$undefined");
 
     public ValueCodec(boolean stopOnInvalidRecord, PluginTask task)
     {
-        this.formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", java.util.Locale.ENGLISH);
-        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-        this.stopOnInvalidRecord = stopOnInvalidRecord;
+        this.policy = stopOnInvalidRecord ? UnsupportedValuePolicy.FAIL : task.getOnUnsupportedValue();
         this.task = task;
-        this.incrementalField = task.getIncrementalField();
-        this.lastRecord = new HashMap<>();
-        this.lastRecordType = new HashMap<>();
+        this.fieldNames = new HashMap<>();
+        this.idFieldName = newString(task.getIdFieldName());
+        this.renamesId = !task.getIdFieldName().equals("_id");
+        this.fieldNames.put(task.getIdFieldName(), idFieldName);
+
+        List<String> incrementalFields = task.getIncrementalField().orElse(Collections.<String>emptyList());
+        this.trackedFields = incrementalFields.toArray(new String[0]);
+        this.trackedNames = new StringValue[trackedFields.length];
+        for (int i = 0; i < trackedFields.length; i++) {
+            // Names are cached first, so that fields are matched by identity
+            trackedNames[i] = normalize(trackedFields[i]);
+            fieldNames.put(trackedFields[i], trackedNames[i]);
+        }
+        this.trackedValues = new TrackedValue[trackedFields.length];
+        this.pendingValues = new TrackedValue[trackedFields.length];
+        for (int i = 0; i < trackedFields.length; i++) {
+            trackedValues[i] = new TrackedValue();
+            pendingValues[i] = new TrackedValue();
+        }
+
+        for (Map.Entry<BsonType, TypeMapping> mapping : TypeMapping.resolve(task).entrySet()) {
+            if (mapping.getValue() != TypeMapping.UNSUPPORTED) {
+                readers[mapping.getKey().getValue() & 0xff] = createReader(mapping.getKey(), mapping.getValue());
+            }
+        }
     }
 
     @Override
@@ -73,95 +152,430 @@ public class ValueCodec implements Codec<Value>
         throw new UnsupportedOperationException();
     }
 
+    // Documents are decoded into a shared stack of keys and values instead of a map per document.
+    // Each document or array only allocates its final Value[] of the exact size.
     @Override
     public Value decode(final BsonReader reader, final DecoderContext decoderContext)
     {
-        Map<Value, Value> kvs = new LinkedHashMap<>();
+        top = 0;
+        dropped = false;
+        Value document = decodeDocument(reader, decoderContext, trackedNames.length > 0);
+        completeDocument(!dropped);
+        // null tells the caller to skip the document
+        return dropped ? null : document;
+    }
+
+    private Value decodeDocument(final BsonReader reader, final DecoderContext decoderContext, final boolean tracked)
+    {
+        int start = top;
 
         reader.readStartDocument();
         while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
             String originalFieldName = reader.readName();
-            BsonType type = reader.getCurrentBsonType();
-            String fieldName = normalize(originalFieldName);
-
-            Value value;
-            try {
-                value = readValue(reader, decoderContext);
-                kvs.put(newString(fieldName), value);
-                if (incrementalField.isPresent() && incrementalField.get().contains(originalFieldName)) {
-                    this.lastRecord.put(originalFieldName, value);
-                    this.lastRecordType.put(originalFieldName, type.toString());
-                }
-            }
-            catch (UnknownTypeFoundException ex) {
+            if (dropped) {
                 reader.skipValue();
-                if (stopOnInvalidRecord) {
-                    throw ex;
+                continue;
+            }
+            StringValue fieldName = normalize(originalFieldName);
+            int position = tracked ? trackedPosition(originalFieldName, fieldName) : -1;
+
+            Value value = position >= 0 ? readTracked(position, reader, decoderContext, anyValueReader) : readValue(reader, decoderContext);
+            if (value == null) {
+                value = unsupported(originalFieldName);
+                if (value != null) {
+                    put(start, fieldName, value);
                 }
-                log.warn(String.format("Skipped document because field '%s' contains unsupported object type [%s]",
-                        fieldName, type));
+                continue;
             }
-            this.processedRecordCount++;
+            put(start, fieldName, value);
         }
         reader.readEndDocument();
 
-        return newMap(kvs);
+        return newMap(pop(start), true);
     }
 
     public Value decodeArray(final BsonReader reader, final DecoderContext decoderContext)
     {
-        List<Value> list = new ArrayList<>();
+        int start = top;
 
         reader.readStartArray();
         while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
-            list.add(readValue(reader, decoderContext));
+            Value value = readValue(reader, decoderContext);
+            if (value == null) {
+                // An unsupported element makes the whole array unsupported as the value of its field
+                Arrays.fill(stack, start, top, null);
+                top = start;
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    reader.skipValue();
+                }
+                reader.readEndArray();
+                return null;
+            }
+            push(value);
         }
         reader.readEndArray();
 
-        return newArray(list);
+        return newArray(pop(start), true);
+    }
+
+    private void put(int start, StringValue key, Value value)
+    {
+        // `id_field_name` can collide with another field. Keep the first position and the last value like a map.
+        if (renamesId && key == idFieldName) {
+            for (int i = start; i < top; i += 2) {
+                if (stack[i] == key) {
+                    stack[i + 1] = value;
+                    return;
+                }
+            }
+        }
+        push(key);
+        push(value);
+    }
+
+    private void push(Value value)
+    {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top++] = value;
+    }
+
+    private Value[] pop(int start)
+    {
+        Value[] values = Arrays.copyOfRange(stack, start, top);
+        Arrays.fill(stack, start, top, null);
+        top = start;
+        return values;
+    }
+
+    // Decodes one value of any type, e.g. a field picked out by ColumnCodec, or returns null if it's unsupported
+    Value decodeValue(final BsonReader reader, final DecoderContext decoderContext)
+    {
+        top = 0;
+        dropped = false;
+        return readValue(reader, decoderContext);
+    }
+
+    // Applies `on_unsupported_value` to the field of which value couldn't be read, and returns the value to put, or null to skip the field
+    private Value unsupported(String field)
+    {
+        countUnsupportedValue(field, unsupportedType);
+        switch (policy) {
+            case FAIL:
+                throw new UnknownTypeFoundException(String.format("Unsupported type %s of '%s' field. Please exclude the field from 'projection:' option",
+                        unsupportedType, field));
+            case NULL_FIELD:
+                return newNil();
+            case DROP_DOCUMENT:
+                dropped = true;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    void countUnsupportedValue(String field, BsonType type)
+    {
+        Map<BsonType, Long> types = unsupportedValues.get(field);
+        if (types == null) {
+            types = new EnumMap<>(BsonType.class);
+            unsupportedValues.put(field, types);
+        }
+        types.merge(type, 1L, Long::sum);
+    }
+
+    BsonType getUnsupportedType()
+    {
+        return unsupportedType;
+    }
+
+    // Whether a nested document of the last value was dropped by `on_unsupported_value: drop_document`
+    boolean isDropped()
+    {
+        return dropped;
+    }
+
+    String formatDateTime(long epochMillis)
+    {
+        return IsoDateFormatter.format(epochMillis);
+    }
+
+    static boolean isEpochMillis(PluginTask task)
+    {
+        switch (task.getDateTimeOutput()) {
+            case "iso8601":
+                return false;
+            case "epoch_millis":
+                return true;
+            default:
+                throw new ConfigException(String.format("Unknown date_time_output '%s'. Supported date_time_output are iso8601, epoch_millis", task.getDateTimeOutput()));
+        }
+    }
+
+    // Position of the top-level field in `incremental_field`, or -1
+    private int trackedPosition(String originalFieldName, StringValue fieldName)
+    {
+        for (int i = 0; i < trackedNames.length; i++) {
+            // `_id` and the field named `id_field_name` share the name
+            if (trackedNames[i] == fieldName && (fieldName != idFieldName || trackedFields[i].equals(originalFieldName))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Tracks the value of a field in `incremental_field`, and skips it
+    void trackIncrementalField(int position, BsonReader reader, DecoderContext decoderContext)
+    {
+        readTracked(position, reader, decoderContext, SKIP);
+    }
+
+    // Reads a value with `read`, and keeps its BSON bytes. A BsonValue is built from them only for `last_record`.
+    private Value readTracked(int position, BsonReader reader, DecoderContext decoderContext, ValueReader read)
+    {
+        TrackedValue pending = pendingValues[position];
+        if (reader instanceof BsonBinaryReader) {
+            BsonInput input = ((BsonBinaryReader) reader).getBsonInput();
+            BsonType type = reader.getCurrentBsonType();
+            BsonInputMark start = input.getMark(Integer.MAX_VALUE);
+            int from = input.getPosition();
+            Value value = read.read(reader, decoderContext);
+            int length = input.getPosition() - from;
+            start.reset();
+            pending.copy(type, input, length);
+            return value;
+        }
+        // Readers of decoded documents, such as BsonDocumentReader, have no bytes
+        BsonReaderMark mark = reader.getMark();
+        pending.set(BSON_VALUE_CODEC.decode(reader, decoderContext));
+        mark.reset();
+        return read.read(reader, decoderContext);
+    }
+
+    // Keeps the tracked values of the document only if it's emitted, so that a dropped document doesn't advance `last_record`
+    void completeDocument(boolean emitted)
+    {
+        processedRecordCount++;
+        for (int i = 0; i < pendingValues.length; i++) {
+            if (emitted && !pendingValues[i].isEmpty()) {
+                // Swapped instead of copied, so that the buffers are reused
+                TrackedValue value = trackedValues[i];
+                trackedValues[i] = pendingValues[i];
+                pendingValues[i] = value;
+            }
+            pendingValues[i].clear();
+        }
     }
 
     private Value readValue(BsonReader reader, DecoderContext decoderContext)
     {
-        switch (reader.getCurrentBsonType()) {
-            // https://docs.mongodb.com/manual/reference/bson-types/
-            // https://github.com/mongodb/mongo-java-driver/tree/master/bson/src/main/org/bson/codecs
+        ValueReader valueReader = readers[reader.getCurrentBsonType().getValue() & 0xff];
+        if (valueReader == null) {
+            // Skipped without an exception, as dirty collections can have many of them
+            unsupportedType = reader.getCurrentBsonType();
+            reader.skipValue();
+            return null;
+        }
+        return valueReader.read(reader, decoderContext);
+    }
+
+    // https://docs.mongodb.com/manual/reference/bson-types/
+    // https://docs.mongodb.com/manual/reference/mongodb-extended-json/
+    private ValueReader createReader(BsonType type, TypeMapping mapping)
+    {
+        switch (type) {
             case DOUBLE:
-                return newFloat(reader.readDouble());
+                if (mapping == TypeMapping.NATIVE) {
+                    return (reader, context) -> newFloat(reader.readDouble());
+                }
+                return textReader(mapping, NUMBER_DOUBLE, reader -> Double.toString(reader.readDouble()));
+            case INT32:
+                if (mapping == TypeMapping.NATIVE) {
+                    return (reader, context) -> newInteger(reader.readInt32());
+                }
+                return textReader(mapping, NUMBER_INT, reader -> Integer.toString(reader.readInt32()));
+            case INT64:
+                if (mapping == TypeMapping.NATIVE) {
+                    return (reader, context) -> newInteger(reader.readInt64());
+                }
+                return textReader(mapping, NUMBER_LONG, reader -> Long.toString(reader.readInt64()));
+            case DECIMAL128:
+                if (mapping == TypeMapping.NATIVE) {
+                    // Also parses NaN and Infinity
+                    return (reader, context) -> newFloat(Double.parseDouble(reader.readDecimal128().toString()));
+                }
+                return textReader(mapping, NUMBER_DECIMAL, reader -> reader.readDecimal128().toString());
+            case BOOLEAN:
+                if (mapping == TypeMapping.STRING) {
+                    return (reader, context) -> newString(Boolean.toString(reader.readBoolean()));
+                }
+                return (reader, context) -> newBoolean(reader.readBoolean());
             case STRING:
-                return newString(reader.readString());
-            case ARRAY:
-                return decodeArray(reader, decoderContext);
-            case BINARY:
-                return newBinary(reader.readBinaryData().getData(), true);
+                return (reader, context) -> newString(reader.readString());
+            case SYMBOL:
+                return textReader(mapping, SYMBOL, BsonReader::readSymbol);
             case OBJECT_ID:
-                return newString(reader.readObjectId().toString());
-            case BOOLEAN:
-                return newBoolean(reader.readBoolean());
-            case DATE_TIME:
-                return newString(formatter.format(new Date(reader.readDateTime())));
-            case NULL:
-                reader.readNull();
-                return newNil();
-            case REGULAR_EXPRESSION:
-                return newString(reader.readRegularExpression().toString());
+                return textReader(mapping, OID, reader -> reader.readObjectId().toHexString());
             case JAVASCRIPT:
-                return newString(reader.readJavaScript());
+                return textReader(mapping, CODE, BsonReader::readJavaScript);
             case JAVASCRIPT_WITH_SCOPE:
-                return newString(reader.readJavaScriptWithScope());
-            case INT32:
-                return newInteger(reader.readInt32());
+                return (reader, context) -> {
+                    Value code = newString(reader.readJavaScriptWithScope());
+                    Value scope = decodeDocument(reader, context, false);
+                    return mapping == TypeMapping.STRING ? code : newMap(CODE, code, SCOPE, scope);
+                };
+            case REGULAR_EXPRESSION:
+                if (mapping == TypeMapping.STRING) {
+                    return (reader, context) -> newString(reader.readRegularExpression().toString());
+                }
+                return (reader, context) -> {
+                    BsonRegularExpression regex = reader.readRegularExpression();
+                    return newMap(REGULAR_EXPRESSION, newMap(PATTERN, newString(regex.getPattern()), OPTIONS, newString(regex.getOptions())));
+                };
+            case DATE_TIME:
+                switch (mapping) {
+                    case STRING:
+                        return (reader, context) -> newString(formatDateTime(reader.readDateTime()));
+                    case NATIVE:
+                        return (reader, context) -> newInteger(reader.readDateTime());
+                    default:
+                        return (reader, context) -> newMap(DATE, newMap(NUMBER_LONG, newString(Long.toString(reader.readDateTime()))));
+                }
             case TIMESTAMP:
-                return newInteger(reader.readTimestamp().getTime());
-            case INT64:
-                return newInteger(reader.readInt64());
+                if (mapping == TypeMapping.NATIVE) {
+                    // Only the seconds. The increment is kept by extended_json.
+                    return (reader, context) -> newInteger(reader.readTimestamp().getTime());
+                }
+                return extendedReader(mapping, reader -> {
+                    BsonTimestamp timestamp = reader.readTimestamp();
+                    return newMap(TIMESTAMP, newMap(T, newInteger(timestamp.getTime()), I, newInteger(timestamp.getInc())));
+                });
+            case BINARY:
+                if (mapping == TypeMapping.NATIVE) {
+                    return (reader, context) -> newBinary(reader.readBinaryData().getData(), true);
+                }
+                if (mapping == TypeMapping.STRING) {
+                    return (reader, context) -> newString(Base64.getEncoder().encodeToString(reader.readBinaryData().getData()));
+                }
+                return (reader, context) -> {
+                    BsonBinary binary = reader.readBinaryData();
+                    return newMap(BINARY, newMap(BASE64, newString(Base64.getEncoder().encodeToString(binary.getData())),
+                            SUB_TYPE, newString(String.format("%02x", binary.getType()))));
+                };
+            case MIN_KEY:
+                return extendedReader(mapping, reader -> {
+                    reader.readMinKey();
+                    return newMap(MIN_KEY, newInteger(1));
+                });
+            case MAX_KEY:
+                return extendedReader(mapping, reader -> {
+                    reader.readMaxKey();
+                    return newMap(MAX_KEY, newInteger(1));
+                });
+            case DB_POINTER:
+                return extendedReader(mapping, reader -> {
+                    BsonDbPointer pointer = reader.readDBPointer();
+                    return newMap(DB_POINTER, newMap(REF, newString(pointer.getNamespace()), ID, newMap(OID, newString(pointer.getId().toHexString()))));
+                });
+            case UNDEFINED:
+                if (mapping == TypeMapping.NATIVE) {
+                    return (reader, context) -> {
+                        reader.readUndefined();
+                        return newNil();
+                    };
+                }
+                return (reader, context) -> {
+                    reader.readUndefined();
+                    return newMap(UNDEFINED, newBoolean(true));
+                };
+            case NULL:
+                return (reader, context) -> {
+                    reader.readNull();
+                    return newNil();
+                };
             case DOCUMENT:
-                return decode(reader, decoderContext);
-            case SYMBOL:
-                return newString(reader.readSymbol());
-            default: // e.g. MIN_KEY, MAX_KEY, DB_POINTER, UNDEFINED
-                throw new UnknownTypeFoundException(String.format("Unsupported type %s of '%s' field. Please exclude the field from 'projection:' option",
-                        reader.getCurrentBsonType(), reader.getCurrentName()));
+                return (reader, context) -> decodeDocument(reader, context, false);
+            case ARRAY:
+                return this::decodeArray;
+            default:
+                return null;
+        }
+    }
+
+    // A string, or the string in an Extended JSON object like {"$numberLong": "1"}
+    private static ValueReader textReader(TypeMapping mapping, StringValue key, Function<BsonReader, String> read)
+    {
+        if (mapping == TypeMapping.EXTENDED_JSON) {
+            return (reader, context) -> newMap(key, newString(read.apply(reader)));
+        }
+        return (reader, context) -> newString(read.apply(reader));
+    }
+
+    // An Extended JSON object, or its JSON in a string
+    private static ValueReader extendedReader(TypeMapping mapping, Function<BsonReader, Value> read)
+    {
+        if (mapping == TypeMapping.STRING) {
+            return (reader, context) -> newString(read.apply(reader).toJson());
+        }
+        return (reader, context) -> read.apply(reader);
+    }
+
+    private interface ValueReader
+    {
+        Value read(BsonReader reader, DecoderContext decoderContext);
+    }
+
+    private static final ValueReader SKIP = (reader, context) -> {
+        reader.skipValue();
+        return null;
+    };
+
+    // The BSON bytes of a tracked value, or the value itself from a reader without bytes
+    private static final class TrackedValue
+    {
+        private BsonType type;
+        private byte[] bytes = new byte[16];
+        private int length = -1;
+        private BsonValue value;
+
+        void copy(BsonType type, BsonInput input, int length)
+        {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            input.readBytes(bytes, 0, length);
+            this.type = type;
+            this.length = length;
+            this.value = null;
+        }
+
+        void set(BsonValue value)
+        {
+            this.value = value;
+            this.length = -1;
+        }
+
+        void clear()
+        {
+            length = -1;
+            value = null;
+        }
+
+        boolean isEmpty()
+        {
+            return length < 0 && value == null;
+        }
+
+        // Wraps the bytes in a document like {"v": value} to decode them
+        BsonValue toBsonValue()
+        {
+            if (value != null) {
+                return value;
+            }
+            ByteBuffer document = ByteBuffer.allocate(length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            document.putInt(length + 8).put((byte) type.getValue()).put((byte) 'v').put((byte) 0).put(bytes, 0, length).put((byte) 0);
+            return new RawBsonDocument(document.array()).get("v");
         }
     }
 
@@ -171,27 +585,41 @@ public class ValueCodec implements Codec<Value>
         return Value.class;
     }
 
-    private String normalize(String key)
+    private StringValue normalize(String key)
     {
         if (key.equals("_id")) {
-            return task.getIdFieldName();
+            return idFieldName;
         }
-        return key;
+        StringValue name = fieldNames.get(key);
+        if (name == null) {
+            name = newString(key);
+            // Don't let documents keyed by arbitrary values grow the cache without bound
+            if (fieldNames.size() < MAX_CACHED_FIELD_NAMES) {
+                fieldNames.put(key, name);
+            }
+        }
+        return name;
     }
 
-    public Map<String, Object> getLastRecord()
+    public Map<String, BsonValue> getLastRecord()
     {
-        return this.lastRecord;
+        Map<String, BsonValue> lastRecord = new LinkedHashMap<>();
+        for (int i = 0; i < trackedFields.length; i++) {
+            if (!trackedValues[i].isEmpty()) {
+                lastRecord.put(trackedFields[i], trackedValues[i].toBsonValue());
+            }
+        }
+        return lastRecord;
     }
 
-    public Long getProcessedRecordCount()
+    public long getProcessedRecordCount()
     {
         return this.processedRecordCount;
     }
 
-    public Map<String, String> getLastRecordType()
+    public Map<String, Map<BsonType, Long>> getUnsupportedValues()
     {
-        return this.lastRecordType;
+        return unsupportedValues;
     }
 
     public static class UnknownTypeFoundException extends DataException
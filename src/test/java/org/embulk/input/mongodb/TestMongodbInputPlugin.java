@@ -23,16 +23,44 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoQueryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
 import org.bson.BsonBinary;
+import org.bson.BsonDateTime;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
 import org.bson.BsonInt64;
 import org.bson.BsonJavaScript;
 import org.bson.BsonMaxKey;
+import org.bson.BsonObjectId;
 import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
 import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonUndefined;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.conversions.Bson;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
 import org.bson.types.Symbol;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigDiff;
@@ -41,6 +69,7 @@ import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.InputPlugin;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
@@ -50,21 +79,33 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.msgpack.value.Value;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 public class TestMongodbInputPlugin
@@ -108,6 +149,7 @@ public class TestMongodbInputPlugin
         assertEquals("record", task.getJsonColumnName());
         assertEquals(Optional.empty(), task.getIncrementalField());
         assertEquals(Optional.empty(), task.getLastRecord());
+        assertEquals(false, task.getCollectStats());
     }
 
     @Test(expected = ConfigException.class)
@@ -190,6 +232,63 @@ public class TestMongodbInputPlugin
         plugin.transaction(config, new Control());
     }
 
+    @Test(expected = ConfigException.class)
+    public void checkGroupStageCannotUseWithPartitionCount()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("aggregation", "[{$match: {account: {$gt: 32864}}}, {$group: {_id: \"$account\"}}]")
+                .set("partition_count", 4);
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkInvalidMaxTimeMs()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("max_time_ms", 0);
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkMinRequiresHint()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("min", "{\"int32_field\": 2}");
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkUnknownReadConcern()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("read_concern", "linearizable");
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkLimitCannotUseWithPartitionCount()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("limit", 1)
+                .set("partition_count", 4);
+
+        plugin.transaction(config, new Control());
+    }
+
     @Test
     public void testCreateCredentialsSha1() throws Exception
     {
@@ -299,19 +398,616 @@ public class TestMongodbInputPlugin
     public void testCleanup()
     {
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
-        Schema schema = getFieldSchema();
-        plugin.cleanup(task.dump(), schema, 0, Lists.<TaskReport>newArrayList()); // no errors happens
-    }
+        Schema schema = getFieldSchema();
+        plugin.cleanup(task.dump(), schema, 0, Lists.<TaskReport>newArrayList()); // no errors happens
+    }
+
+    @Test
+    public void testGuess()
+    {
+        plugin.guess(config); // no errors happens
+    }
+
+    @Test
+    public void testGuessColumns() throws Exception
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        ConfigDiff diff = plugin.guess(config);
+        Map<String, String> types = new HashMap<>();
+        Map<String, String> paths = new HashMap<>();
+        for (Object column : diff.get(List.class, "columns")) {
+            Map<?, ?> attributes = (Map<?, ?>) column;
+            types.put((String) attributes.get("name"), (String) attributes.get("type"));
+            if (attributes.containsKey("path")) {
+                paths.put((String) attributes.get("name"), (String) attributes.get("path"));
+            }
+        }
+        assertEquals("string", types.get("_id"));
+        assertEquals("long", types.get("int32_field"));
+        assertEquals("double", types.get("double_field"));
+        assertEquals("timestamp", types.get("datetime_field"));
+        assertEquals("json", types.get("array_field"));
+        // boolean, int32, double, string and date are found in "k"
+        assertEquals("string", types.get("document_field_k"));
+        assertEquals("document_field.k", paths.get("document_field_k"));
+        assertEquals(false, types.containsKey("null_field"));
+    }
+
+    @Test
+    public void testGuessColumnsWithCollidingNames() throws Exception
+    {
+        ConfigSource config = config().set("id_field_name", "id");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, Arrays.asList(new Document("a", new Document("b", 1)).append("a_b", "x").append("id", 2.5)));
+
+        ConfigDiff diff = plugin.guess(config);
+        List<String> names = new ArrayList<>();
+        Map<String, String> paths = new HashMap<>();
+        for (Object column : diff.get(List.class, "columns")) {
+            Map<?, ?> attributes = (Map<?, ?>) column;
+            names.add((String) attributes.get("name"));
+            if (attributes.containsKey("path")) {
+                paths.put((String) attributes.get("name"), (String) attributes.get("path"));
+            }
+        }
+        // _id and top-level fields keep their names
+        assertEquals(Arrays.asList("id", "a_b_2", "a_b", "id_2"), names);
+        assertEquals(ImmutableMap.of("a_b_2", "a.b", "id_2", "id"), paths);
+
+        // The proposed columns can be loaded
+        plugin.transaction(config.deepCopy().set("columns", diff.get(List.class, "columns")), new Control());
+        assertEquals(1, output.pages.size());
+    }
+
+    @Test
+    public void testRun() throws Exception
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testRunWithColumns() throws Exception
+    {
+        ConfigSource config = config()
+                .set("sort", "{\"int32_field\": 1}")
+                .set("columns", Arrays.asList(
+                        ImmutableMap.of("name", "int32_field", "type", "long"),
+                        ImmutableMap.of("name", "double_field", "type", "double"),
+                        ImmutableMap.of("name", "boolean_field", "type", "boolean"),
+                        ImmutableMap.of("name", "datetime_field", "type", "timestamp"),
+                        ImmutableMap.of("name", "second", "type", "long", "path", "array_field.1"),
+                        ImmutableMap.of("name", "k", "type", "string", "path", "document_field.k"),
+                        ImmutableMap.of("name", "document_field", "type", "json")));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        Schema schema = task.getColumns().get().toSchema();
+        List<Object[]> records = Pages.toObjects(schema, output.pages);
+        assertEquals(5, records.size());
+
+        Object[] first = records.get(0);
+        assertEquals(1L, first[0]);
+        assertEquals(1.23, first[1]);
+        assertEquals(true, first[2]);
+        assertEquals("2015-01-27 10:23:49 UTC", first[3].toString());
+        assertEquals(2L, first[4]);
+        assertEquals("true", first[5]);
+        assertEquals("{\"k\":true}", first[6].toString());
+
+        Object[] second = records.get(1);
+        assertEquals(Arrays.asList(2L, null, false, null, null, "1"), Arrays.asList(second).subList(0, 6));
+        assertEquals("2015-02-02T23:13:45.000Z", records.get(4)[5]);
+    }
+
+    @Test
+    public void testRunWithPrefetch() throws Exception
+    {
+        ConfigSource config = config().set("prefetch_batches", 1).set("batch_size", 2);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testRunWithDecodeThreads() throws Exception
+    {
+        ConfigSource config = config().set("decode_threads", 3).set("batch_size", 1);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testRunWithUnorderedDecodeThreads() throws Exception
+    {
+        ConfigSource config = config().set("decode_threads", 3).set("batch_size", 1).set("preserve_order", false);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+    }
+
+    @Test
+    public void testRunWithCheckpoint() throws Exception
+    {
+        Path directory = Files.createTempDirectory("embulk-input-mongodb");
+        ConfigSource config = config()
+                .set("checkpoint_directory", directory.toString())
+                .set("checkpoint_interval", 2);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        List<Document> documents = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            documents.add(new Document("_id", i).append("int32_field", i));
+        }
+        insertDocument(task, documents);
+
+        // A checkpoint left by a failed attempt of the task
+        Path checkpoint = new Checkpoint(task, 0, Optional.<Partition>empty(), () -> { }).getPath();
+        Files.write(checkpoint, "{\"_id\": 3}".getBytes(StandardCharsets.UTF_8));
+
+        plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+        assertEquals(false, Files.exists(checkpoint));
+    }
+
+    @Test
+    public void testRunWithCursorRetry() throws Exception
+    {
+        ConfigSource config = config().set("cursor_retry_limit", 3);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testRunWithCursorRetryAfterFailure() throws Exception
+    {
+        ConfigSource config = config()
+                .set("cursor_retry_limit", 3)
+                .set("cursor_retry_initial_wait_millis", 1)
+                .set("batch_size", 2);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createMixedIdDocuments());
+
+        // The first cursor fails after 3 documents, and the second after 2 more documents
+        final AtomicInteger opened = new AtomicInteger();
+        plugin = new MongodbInputPlugin() {
+            @Override
+            <T> MongoIterable<T> openDocuments(PluginTask task, QueryPlan plan, MongoCollection<T> collection, Bson query)
+            {
+                MongoIterable<T> documents = super.openDocuments(task, plan, collection, query);
+                int count = opened.incrementAndGet();
+                return count > 2 ? documents : failingIterable(documents, count == 1 ? 3 : 2, new MongoSocketException("injected", new ServerAddress()));
+            }
+        };
+
+        plugin.transaction(config, new Control());
+        assertEquals(3, opened.get());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+    }
+
+    @Test
+    public void testRunWithCheckpointOfMixedIdTypes() throws Exception
+    {
+        Path directory = Files.createTempDirectory("embulk-input-mongodb");
+        ConfigSource config = config()
+                .set("checkpoint_directory", directory.toString())
+                .set("checkpoint_interval", 2);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createMixedIdDocuments());
+
+        // Strings and ObjectIds sort after numbers, so they're still to be read after the number 2
+        Path checkpoint = new Checkpoint(task, 0, Optional.<Partition>empty(), () -> { }).getPath();
+        Files.write(checkpoint, "{\"_id\": 2}".getBytes(StandardCharsets.UTF_8));
+
+        plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(3L, 4L, 5L, 6L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+    }
+
+    // _id of numbers, strings and an ObjectId, in the sort order of _id
+    private static List<Document> createMixedIdDocuments()
+    {
+        return Arrays.asList(
+                new Document("_id", 1).append("int32_field", 1),
+                new Document("_id", 2).append("int32_field", 2),
+                new Document("_id", 3L).append("int32_field", 3),
+                new Document("_id", "a").append("int32_field", 4),
+                new Document("_id", "b").append("int32_field", 5),
+                new Document("_id", new ObjectId("55eae883689a08361045d652")).append("int32_field", 6));
+    }
+
+    // Documents whose cursor throws the exception after reading the number of documents
+    @SuppressWarnings("unchecked")
+    private static <T> MongoIterable<T> failingIterable(MongoIterable<T> documents, int failAfter, RuntimeException exception)
+    {
+        return (MongoIterable<T>) Proxy.newProxyInstance(MongoIterable.class.getClassLoader(), new Class<?>[] {MongoIterable.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("iterator")) {
+                return method.invoke(documents, args);
+            }
+            MongoCursor<T> cursor = documents.iterator();
+            AtomicInteger read = new AtomicInteger();
+            return Proxy.newProxyInstance(MongoCursor.class.getClassLoader(), new Class<?>[] {MongoCursor.class}, (cursorProxy, cursorMethod, cursorArgs) -> {
+                if ((cursorMethod.getName().equals("next") || cursorMethod.getName().equals("hasNext")) && read.get() >= failAfter) {
+                    throw exception;
+                }
+                if (cursorMethod.getName().equals("next")) {
+                    read.incrementAndGet();
+                }
+                return cursorMethod.invoke(cursor, cursorArgs);
+            });
+        });
+    }
+
+    @Test
+    public void testIsRetryable() throws Exception
+    {
+        Method method = MongodbInputPlugin.class.getDeclaredMethod("isRetryable", MongoException.class);
+        method.setAccessible(true);
+        ServerAddress address = new ServerAddress();
+        assertEquals(true, method.invoke(plugin, new MongoCursorNotFoundException(1L, address)));
+        assertEquals(true, method.invoke(plugin, new MongoSocketReadException("timed out", address)));
+        assertEquals(true, method.invoke(plugin, new MongoQueryException(address, 11602, "interrupted")));
+        assertEquals(false, method.invoke(plugin, new MongoQueryException(address, 2, "bad value")));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkChangeStreamWithPartitions()
+    {
+        ConfigSource config = config().set("mode", "change_stream").set("partition_count", 4);
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkSnapshotChangeStreamWithResumeToken()
+    {
+        ConfigSource config = config().set("mode", "snapshot_change_stream")
+                .set("resume_token", Collections.singletonMap("_data", "825F"));
+        plugin.transaction(config, new Control());
+    }
+
+    @Test
+    public void testChangeStreamPositions()
+    {
+        BsonDocument token = BsonDocument.parse("{\"_data\": {\"$binary\": \"gloIT8gAAAABRmRfaWQAZFiNFqw=\", \"$type\": \"00\"}}");
+        assertEquals(token, EventStream.toBson(EventStream.toMap(token)));
+
+        BsonTimestamp time = new BsonTimestamp(1463991177, 4);
+        assertEquals(time, EventStream.toTimestamp("start_at_operation_time", EventStream.toMap(time)));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkOplogWithQuery()
+    {
+        ConfigSource config = config().set("mode", "oplog").set("query", "{\"op\": \"i\"}");
+        plugin.transaction(config, new Control());
+    }
+
+    @Test
+    public void testOplogToEvent()
+    {
+        BsonDocument insert = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 1}}, op: 'i', ns: 'mydb.my_collection', o: {_id: 1, k: 'v'}}");
+        assertEquals(BsonDocument.parse("{operationType: 'insert', documentKey: {_id: 1}, fullDocument: {_id: 1, k: 'v'},"
+                + " ns: {db: 'mydb', coll: 'my_collection'}, clusterTime: {$timestamp: {\"t\": 1463991177, \"i\": 1}}}"), OplogStream.toEvent(insert));
+
+        BsonDocument update = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 2}}, op: 'u', ns: 'mydb.my_collection', o2: {_id: 1}, o: {$set: {k: 'w'}, $unset: {x: true}}}");
+        assertEquals(BsonDocument.parse("{operationType: 'update', documentKey: {_id: 1}, updateDescription: {updatedFields: {k: 'w'}, removedFields: ['x']},"
+                + " ns: {db: 'mydb', coll: 'my_collection'}, clusterTime: {$timestamp: {\"t\": 1463991177, \"i\": 2}}}"), OplogStream.toEvent(update));
+
+        BsonDocument replace = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 3}}, op: 'u', ns: 'mydb.my_collection', o2: {_id: 1}, o: {_id: 1, k: 'x'}}");
+        assertEquals("replace", OplogStream.toEvent(replace).getString("operationType").getValue());
+
+        BsonDocument delete = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 4}}, op: 'd', ns: 'mydb.my_collection', o: {_id: 1}}");
+        assertEquals(BsonDocument.parse("{_id: 1}"), OplogStream.toEvent(delete).getDocument("documentKey"));
+
+        BsonDocument noop = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 5}}, op: 'n', ns: '', o: {msg: 'periodic noop'}}");
+        assertEquals(null, OplogStream.toEvent(noop));
+    }
+
+    @Test
+    public void testOplogTransactionEntries()
+    {
+        BsonDocument transaction = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 6}}, op: 'c', ns: 'admin.$cmd', o: {applyOps: ["
+                + "{op: 'i', ns: 'mydb.my_collection', o: {_id: 1}}, {op: 'i', ns: 'mydb.other', o: {_id: 2}},"
+                + " {op: 'd', ns: 'mydb.my_collection', o: {_id: 3}}]}, txnNumber: 1}");
+        List<BsonDocument> entries = OplogStream.toTransactionEntries(transaction, "mydb.my_collection");
+        assertEquals(2, entries.size());
+        assertEquals(BsonDocument.parse("{operationType: 'insert', documentKey: {_id: 1}, fullDocument: {_id: 1},"
+                + " ns: {db: 'mydb', coll: 'my_collection'}, clusterTime: {$timestamp: {\"t\": 1463991177, \"i\": 6}}}"), OplogStream.toEvent(entries.get(0)));
+        assertEquals("delete", OplogStream.toEvent(entries.get(1)).getString("operationType").getValue());
+    }
+
+    @Test(expected = DataException.class)
+    public void checkOplogPartialTransaction()
+    {
+        // Only the last entry of a transaction split into entries tells whether it's committed
+        BsonDocument partial = BsonDocument.parse("{ts: {$timestamp: {\"t\": 1463991177, \"i\": 7}}, op: 'c', ns: 'admin.$cmd', o: {applyOps: ["
+                + "{op: 'i', ns: 'mydb.my_collection', o: {_id: 4}}], partialTxn: true}}");
+        OplogStream.toTransactionEntries(partial, "mydb.my_collection");
+    }
+
+    @Test
+    public void testRunWithCollectStats() throws Exception
+    {
+        ConfigSource config = config().set("collect_stats", true);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testClientIsSharedAndClosed() throws Exception
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        int before = MongoClientCache.size();
+        try (MongoClientCache.Lease first = connect(task); MongoClientCache.Lease second = connect(task)) {
+            assertEquals(first.getClient(), second.getClient());
+            assertEquals(before + 1, MongoClientCache.size());
+        }
+        assertEquals(before, MongoClientCache.size());
+    }
+
+    @Test
+    public void testRunWithLimit() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("limit", 1);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output, 1, 0);
+    }
+
+    @Test
+    public void testRunWithLimitSkip() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("limit", 3)
+                .set("skip", 1);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output, 3, 1);
+    }
+
+    @Test
+    public void testRunWithConnectionParams() throws Exception
+    {
+        MongoClientURI uri = new MongoClientURI(mongoUri);
+        String host = uri.getHosts().get(0);
+        Integer port = (host.split(":")[1] != null) ? Integer.valueOf(host.split(":")[1]) : 27017;
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("hosts", Arrays.asList(ImmutableMap.of("host", host.split(":")[0], "port", port)))
+                .set("user", uri.getUsername())
+                .set("password", uri.getPassword())
+                .set("database", uri.getDatabase())
+                .set("collection", mongoCollection);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+        assertValidRecords(getFieldSchema(), output);
+    }
+
+    @Test
+    public void testRunWithIncrementalLoad() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("incremental_field", Optional.of(Arrays.asList("int32_field")));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        ConfigDiff diff = plugin.transaction(config, new Control());
+        ConfigDiff lastRecord = diff.getNested("last_record");
+
+        assertEquals("5", lastRecord.get(String.class, "int32_field"));
+    }
+
+    @Test
+    public void testRunWithLimitIncrementalLoad() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("id_field_name", "int32_field")
+                .set("incremental_field", Optional.of(Arrays.asList("int32_field", "double_field", "datetime_field", "boolean_field")))
+                .set("limit", 1);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        ConfigDiff diff = plugin.transaction(config, new Control());
+        ConfigDiff lastRecord = diff.getNested("last_record");
+
+        assertEquals("1", lastRecord.get(String.class, "int32_field"));
+        assertEquals("1.23", lastRecord.get(String.class, "double_field"));
+        assertEquals("{$date=2015-01-27T10:23:49.000Z}", lastRecord.get(Map.class, "datetime_field").toString());
+        assertEquals("true", lastRecord.get(String.class, "boolean_field"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunWithIncrementalLoadAndTypeMapping() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("incremental_field", Optional.of(Arrays.asList("int32_field", "int64_field", "datetime_field", "timestamp_field")))
+                .set("type_mapping", ImmutableMap.of("int32", "string", "int64", "extended_json", "date_time", "native", "timestamp", "string"))
+                .set("limit", 1);
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        ConfigDiff diff = plugin.transaction(config, new Control());
+        ConfigDiff lastRecord = diff.getNested("last_record");
+
+        assertEquals(Long.valueOf(1), lastRecord.get(Long.class, "int32_field"));
+        assertEquals(Long.valueOf(314159265), lastRecord.get(Long.class, "int64_field"));
+        assertEquals("{$date=2015-01-27T10:23:49.000Z}", lastRecord.get(Map.class, "datetime_field").toString());
+        assertEquals("{$timestamp={t=1463991177, i=4}}", lastRecord.get(Map.class, "timestamp_field").toString());
+
+        // The saved values are queried again as they are
+        Method method = MongodbInputPlugin.class.getDeclaredMethod("buildIncrementalCondition", PluginTask.class);
+        method.setAccessible(true);
+        ConfigSource next = config.deepCopy().remove("limit").set("last_record", lastRecord);
+        Map<String, String> condition = (Map<String, String>) method.invoke(plugin, CONFIG_MAPPER_FACTORY.createConfigMapper().map(next, PluginTask.class));
+        BsonDocument query = BsonDocument.parse(condition.get("query"));
+        assertEquals(new BsonTimestamp(1463991177, 4), query.getDocument("timestamp_field").get("$gt"));
+    }
+
+    @Test
+    public void testRunWithLimitIncrementalLoadWithNoRecord() throws Exception
+    {
+        Map<String, Object> previousLastRecord = new HashMap<>();
+        previousLastRecord.put("int32_field", 1);
+        previousLastRecord.put("datetime_field", "{$date=2015-01-27T10:23:49.000Z}");
+        previousLastRecord.put("boolean_field", true);
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("id_field_name", "int32_field")
+                .set("query", "{\"double_field\":{\"$gte\": 1.23}}")
+                .set("incremental_field", Optional.of(Arrays.asList("int32_field", "datetime_field", "boolean_field")))
+                .set("last_record", previousLastRecord);
+
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        ConfigDiff diff = plugin.transaction(config, new Control());
+        ConfigDiff lastRecord = diff.getNested("last_record");
+
+        assertEquals("1", lastRecord.get(String.class, "int32_field"));
+        assertEquals("{$date=2015-01-27T10:23:49.000Z}", lastRecord.get(String.class, "datetime_field"));
+        assertEquals("true", lastRecord.get(String.class, "boolean_field"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testRunWithIncrementalLoadUnsupportedType() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("incremental_field", Optional.of(Arrays.asList("document_field")));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createValidDocuments());
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ValueCodec.UnknownTypeFoundException.class)
+    public void testRunWithUnsupportedType() throws Exception
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("type_mapping", ImmutableMap.of("max_key", "unsupported"))
+                .set("stop_on_invalid_record", true);
+
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
-    @Test
-    public void testGuess()
-    {
-        plugin.guess(config); // no errors happens
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+
+        List<Document> documents = new ArrayList<>();
+        documents.add(
+            new Document("invalid_field", new BsonMaxKey())
+        );
+        insertDocument(task, documents);
+
+        plugin.transaction(config, new Control());
     }
 
     @Test
-    public void testRun() throws Exception
+    public void testRunWithAggregation() throws Exception
     {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("id_field_name", "int32_field")
+                .set("aggregation", "{ $match: {\"int32_field\":{\"$gte\":5 },} }");
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
@@ -319,16 +1015,18 @@ public class TestMongodbInputPlugin
         insertDocument(task, createValidDocuments());
 
         plugin.transaction(config, new Control());
-        assertValidRecords(getFieldSchema(), output);
+        assertValidRecordsForAggregation(getFieldSchema(), output);
     }
 
     @Test
-    public void testRunWithLimit() throws Exception
+    public void testRunWithAggregationPipeline() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("limit", 1);
+                .set("id_field_name", "int32_field")
+                .set("aggregation", "[{$match: {int32_field: {$gte: 2}}}, {$match: {int32_field: {$lte: 4}}}, {$project: {int32_field: 1}}]");
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
@@ -336,17 +1034,22 @@ public class TestMongodbInputPlugin
         insertDocument(task, createValidDocuments());
 
         plugin.transaction(config, new Control());
-        assertValidRecords(getFieldSchema(), output, 1, 0);
+        assertEquals(Arrays.asList(2L, 3L, 4L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
     @Test
-    public void testRunWithLimitSkip() throws Exception
+    public void testRunWithAggregationOptions() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("limit", 3)
-                .set("skip", 1);
+                .set("aggregation", "[{$match: {int32_field: {$gte: 2}}}, {$sort: {int32_field: -1}}]")
+                .set("allow_disk_use", true)
+                .set("max_time_ms", 60000)
+                .set("hint", "{\"_id\": 1}")
+                .set("comment", "embulk-input-mongodb")
+                .set("batch_size", 2);
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
@@ -354,88 +1057,131 @@ public class TestMongodbInputPlugin
         insertDocument(task, createValidDocuments());
 
         plugin.transaction(config, new Control());
-        assertValidRecords(getFieldSchema(), output, 3, 1);
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
     @Test
-    public void testRunWithConnectionParams() throws Exception
+    public void testRunWithFindOptions() throws Exception
     {
-        MongoClientURI uri = new MongoClientURI(mongoUri);
-        String host = uri.getHosts().get(0);
-        Integer port = (host.split(":")[1] != null) ? Integer.valueOf(host.split(":")[1]) : 27017;
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
-                .set("hosts", Arrays.asList(ImmutableMap.of("host", host.split(":")[0], "port", port)))
-                .set("user", uri.getUsername())
-                .set("password", uri.getPassword())
-                .set("database", uri.getDatabase())
-                .set("collection", mongoCollection);
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("query", "{\"int32_field\": {\"$gte\": 2, \"$lt\": 5}}")
+                .set("hint", "{\"int32_field\": 1}")
+                .set("min", "{\"int32_field\": 2}")
+                .set("max", "{\"int32_field\": 5}")
+                .set("read_concern", "local")
+                .set("max_time_ms", 60000)
+                .set("no_cursor_timeout", true)
+                .set("comment", "embulk-input-mongodb")
+                .set("batch_size", 2);
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
         createCollection(task, mongoCollection);
         insertDocument(task, createValidDocuments());
+        try (MongoClientCache.Lease lease = connect(task)) {
+            lease.getDatabase().getCollection(mongoCollection).createIndex(new Document("int32_field", 1));
+        }
 
         plugin.transaction(config, new Control());
-        assertValidRecords(getFieldSchema(), output);
+        assertEquals(Arrays.asList(2L, 3L, 4L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
     @Test
-    public void testRunWithIncrementalLoad() throws Exception
+    public void testRunWithReadPreference() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("incremental_field", Optional.of(Arrays.asList("int32_field")));
+                .set("read_preference", "secondary_preferred")
+                .set("read_preference_tags", Arrays.asList(Collections.singletonMap("nodeType", "ANALYTICS"), Collections.emptyMap()))
+                .set("max_staleness_seconds", 120)
+                .set("spread_partitions", true)
+                .set("partition_field", "int32_field")
+                .set("partition_count", 2);
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
         createCollection(task, mongoCollection);
         insertDocument(task, createValidDocuments());
 
-        ConfigDiff diff = plugin.transaction(config, new Control());
-        ConfigDiff lastRecord = diff.getNested("last_record");
+        // A standalone server is read as is
+        plugin.transaction(config.deepCopy().remove("read_preference_tags"), new Control());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
 
-        assertEquals("5", lastRecord.get(String.class, "int32_field"));
+        output = new MockPageOutput();
+        plugin.transaction(config.deepCopy().remove("spread_partitions"), new Control());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
     @Test
-    public void testRunWithLimitIncrementalLoad() throws Exception
+    public void testRunWithConnectionOptions() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("id_field_name", "int32_field")
-                .set("incremental_field", Optional.of(Arrays.asList("int32_field", "double_field", "datetime_field", "boolean_field")))
-                .set("limit", 1);
+                .set("max_pool_size", 4)
+                .set("min_pool_size", 1)
+                .set("max_wait_time_millis", 10000)
+                .set("max_connection_idle_time_millis", 60000)
+                .set("connect_timeout_millis", 5000)
+                .set("socket_timeout_millis", 60000)
+                .set("server_selection_timeout_millis", 5000)
+                .set("socket_keep_alive", true)
+                .set("compressors", Arrays.asList("zlib"))
+                .set("zlib_compression_level", 6);
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        MongoClientOptions options = MongodbInputPlugin.createConnectionOptions(task, new MongoClientOptions.Builder()).build();
+        assertEquals(4, options.getConnectionsPerHost());
+        assertEquals(1, options.getMinConnectionsPerHost());
+        assertEquals(5000, options.getServerSelectionTimeout());
+        assertEquals(Arrays.asList(MongoCompressor.createZlibCompressor().withProperty(MongoCompressor.LEVEL, 6)).toString(),
+                options.getCompressorList().toString());
 
         dropCollection(task, mongoCollection);
         createCollection(task, mongoCollection);
         insertDocument(task, createValidDocuments());
 
-        ConfigDiff diff = plugin.transaction(config, new Control());
-        ConfigDiff lastRecord = diff.getNested("last_record");
+        plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+    }
 
-        assertEquals("1", lastRecord.get(String.class, "int32_field"));
-        assertEquals("1.23", lastRecord.get(String.class, "double_field"));
-        assertEquals("{$date=2015-01-27T10:23:49.000Z}", lastRecord.get(Map.class, "datetime_field").toString());
-        assertEquals("true", lastRecord.get(String.class, "boolean_field"));
+    @Test(expected = ConfigException.class)
+    public void checkUnsupportedCompressor()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("compressors", Arrays.asList("zstd"));
+
+        plugin.transaction(config, new Control());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkInvalidMaxStalenessSeconds()
+    {
+        ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("uri", mongoUri)
+                .set("collection", mongoCollection)
+                .set("read_preference", "secondary")
+                .set("max_staleness_seconds", 60);
+
+        plugin.transaction(config, new Control());
     }
 
     @Test
-    public void testRunWithLimitIncrementalLoadWithNoRecord() throws Exception
+    public void testRunWithPartitionedAggregation() throws Exception
     {
-        Map<String, Object> previousLastRecord = new HashMap<>();
-        previousLastRecord.put("int32_field", 1);
-        previousLastRecord.put("datetime_field", "{$date=2015-01-27T10:23:49.000Z}");
-        previousLastRecord.put("boolean_field", true);
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("id_field_name", "int32_field")
-                .set("query", "{\"double_field\":{\"$gte\": 1.23}}")
-                .set("incremental_field", Optional.of(Arrays.asList("int32_field", "datetime_field", "boolean_field")))
-                .set("last_record", previousLastRecord);
+                .set("aggregation", "[{$match: {int32_field: {$gte: 2}}}, {$project: {int32_field: 1}}]")
+                .set("partition_field", "int32_field")
+                .set("partition_count", 2);
 
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
@@ -443,21 +1189,19 @@ public class TestMongodbInputPlugin
         createCollection(task, mongoCollection);
         insertDocument(task, createValidDocuments());
 
-        ConfigDiff diff = plugin.transaction(config, new Control());
-        ConfigDiff lastRecord = diff.getNested("last_record");
-
-        assertEquals("1", lastRecord.get(String.class, "int32_field"));
-        assertEquals("{$date=2015-01-27T10:23:49.000Z}", lastRecord.get(String.class, "datetime_field"));
-        assertEquals("true", lastRecord.get(String.class, "boolean_field"));
+        plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
-    @Test(expected = ConfigException.class)
-    public void testRunWithIncrementalLoadUnsupportedType() throws Exception
+    @Test
+    public void testRunWithPartitions() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("incremental_field", Optional.of(Arrays.asList("document_field")));
+                .set("partition_field", "int32_field")
+                .set("partition_count", 3);
+
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
@@ -465,38 +1209,37 @@ public class TestMongodbInputPlugin
         insertDocument(task, createValidDocuments());
 
         plugin.transaction(config, new Control());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
     }
 
-    @Test(expected = ValueCodec.UnknownTypeFoundException.class)
-    public void testRunWithUnsupportedType() throws Exception
+    @Test(expected = ConfigException.class)
+    public void checkPartitionFieldWithArrays() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("stop_on_invalid_record", true);
+                .set("partition_field", "f")
+                .set("partition_count", 2);
 
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
         dropCollection(task, mongoCollection);
         createCollection(task, mongoCollection);
-
-        List<Document> documents = new ArrayList<>();
-        documents.add(
-            new Document("invalid_field", new BsonMaxKey())
-        );
-        insertDocument(task, documents);
+        // [1, 10] would be matched by both ranges
+        insertDocument(task, Arrays.asList(new Document("f", 1), new Document("f", Arrays.asList(1, 10)), new Document("f", 10)));
 
         plugin.transaction(config, new Control());
     }
 
     @Test
-    public void testRunWithAggregation() throws Exception
+    public void testRunWithSamplePartitions() throws Exception
     {
         ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
                 .set("uri", mongoUri)
                 .set("collection", mongoCollection)
-                .set("id_field_name", "int32_field")
-                .set("aggregation", "{ $match: {\"int32_field\":{\"$gte\":5 },} }");
+                .set("partition_field", "int32_field")
+                .set("partition_method", "sample")
+                .set("partition_count", 2);
 
         final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
 
@@ -505,7 +1248,84 @@ public class TestMongodbInputPlugin
         insertDocument(task, createValidDocuments());
 
         plugin.transaction(config, new Control());
-        assertValidRecordsForAggregation(getFieldSchema(), output);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), getSortedLongValues(getFieldSchema(), output, "int32_field"));
+    }
+
+    @Test
+    public void testPartitionFilters()
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config.deepCopy().set("partition_field", "f"), PluginTask.class);
+        PartitionPlanner planner = new PartitionPlanner(task, null, null);
+        List<Partition> partitions = planner.toPartitions(Arrays.<BsonValue>asList(new BsonInt32(10), new BsonInt32(20)));
+
+        assertEquals(3, partitions.size());
+        assertEquals(BsonDocument.parse("{\"f\": {\"$not\": {\"$gte\": 10}}}"), partitions.get(0).toFilter());
+        assertEquals(BsonDocument.parse("{\"f\": {\"$gte\": 10, \"$lt\": 20}}"), partitions.get(1).toFilter());
+        assertEquals(BsonDocument.parse("{\"f\": {\"$gte\": 20}}"), partitions.get(2).toFilter());
+    }
+
+    @Test
+    public void testPartitionFiltersOfMixedTypes() throws Exception
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config.deepCopy().set("partition_field", "_id"), PluginTask.class);
+        dropCollection(task, mongoCollection);
+        createCollection(task, mongoCollection);
+        insertDocument(task, createMixedIdDocuments());
+
+        // Boundaries of chunks can have different types, such as numbers and strings
+        PartitionPlanner planner = new PartitionPlanner(task, null, null);
+        List<Partition> partitions = planner.toPartitions(Arrays.<BsonValue>asList(new BsonInt32(2), new BsonString("b")));
+        assertEquals(3, partitions.size());
+
+        MongoClientCache.Lease lease = connect(task);
+        List<Integer> values = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (Partition partition : partitions) {
+            int size = 0;
+            for (Document document : lease.getDatabase().getCollection(mongoCollection).find(partition.toFilter())) {
+                values.add(document.getInteger("int32_field"));
+                size++;
+            }
+            sizes.add(size);
+        }
+        lease.close();
+        Collections.sort(values);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), values);
+        assertEquals(Arrays.asList(1, 3, 2), sizes);
+    }
+
+    @Test
+    public void testChunkPartitions() throws Exception
+    {
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config.deepCopy().set("partition_method", "chunks"), PluginTask.class);
+        MongoClientCache.Lease lease = connect(task);
+        MongoDatabase db = lease.getDatabase();
+
+        // The config database of a sharded cluster is emulated by collections of the test database
+        String ns = db.getName() + "." + task.getCollection();
+        for (String name : Arrays.asList("collections", "chunks", "shards")) {
+            db.getCollection(name).drop();
+        }
+        db.getCollection("collections").insertOne(new Document("_id", ns).append("key", new Document("k", 1)));
+        db.getCollection("shards").insertMany(Arrays.asList(
+                new Document("_id", "rs0").append("host", "rs0/host0:27018"),
+                new Document("_id", "rs1").append("host", "rs1/host1:27018")));
+        db.getCollection("chunks").insertMany(Arrays.asList(
+                new Document("ns", ns).append("min", new Document("k", new MinKey())).append("max", new Document("k", 10)).append("shard", "rs0"),
+                new Document("ns", ns).append("min", new Document("k", 10)).append("max", new Document("k", 20)).append("shard", "rs0"),
+                new Document("ns", ns).append("min", new Document("k", 20)).append("max", new Document("k", new MaxKey())).append("shard", "rs1")));
+
+        List<Partition> partitions = new PartitionPlanner(task, db, db).plan();
+        for (String name : Arrays.asList("collections", "chunks", "shards")) {
+            db.getCollection(name).drop();
+        }
+        lease.close();
+
+        assertEquals(2, partitions.size());
+        assertEquals(BsonDocument.parse("{\"k\": {\"$not\": {\"$gte\": 20}}}"), partitions.get(0).toFilter());
+        assertEquals(Optional.of("rs0/host0:27018"), partitions.get(0).getHosts());
+        assertEquals(BsonDocument.parse("{\"k\": {\"$gte\": 20}}"), partitions.get(1).toFilter());
+        assertEquals(Optional.of("rs1"), partitions.get(1).getShard());
     }
 
     @Test
@@ -534,6 +1354,311 @@ public class TestMongodbInputPlugin
         assertEquals("f1", normalize.invoke(codec, "f1").toString());
     }
 
+    @Test
+    public void testDecodeWithIdFieldNameCollision()
+    {
+        ConfigSource config = config().set("id_field_name", "object_id");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(true, task);
+
+        BsonDocument document = BsonDocument.parse("{\"_id\": 1, \"object_id\": 2, \"a\": {\"b\": [1, {\"c\": 2}]}}");
+        Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        assertEquals("{\"object_id\":2,\"a\":{\"b\":[1,{\"c\":2}]}}", value.toJson());
+    }
+
+    @Test
+    public void testTrackIncrementalFields()
+    {
+        ConfigSource config = config().set("incremental_field", Arrays.asList("n", "_id"));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(true, task);
+
+        for (String json : Arrays.asList("{\"_id\": 1, \"n\": 10, \"a\": {\"n\": 100}}", "{\"_id\": 2, \"n\": 20, \"a\": {\"n\": 200}}")) {
+            codec.decode(new BsonDocumentReader(BsonDocument.parse(json)), DecoderContext.builder().build());
+        }
+        assertEquals(2, codec.getProcessedRecordCount());
+        assertEquals(new BsonInt32(20), codec.getLastRecord().get("n"));
+        assertEquals(new BsonInt32(2), codec.getLastRecord().get("_id"));
+    }
+
+    @Test
+    public void testIsoDateFormatter() throws Exception
+    {
+        DateFormat format = getUTCDateFormat();
+        List<Long> values = new ArrayList<>(Arrays.asList(0L, -1L, 1422354229000L, 1422354229999L, 1422316800000L, -2208988800001L, 4102444800000L));
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            values.add((long) (random.nextDouble() * 4102444800000L));
+        }
+        for (long value : values) {
+            assertEquals(format.format(new Date(value)), IsoDateFormatter.format(value));
+        }
+    }
+
+    @Test
+    public void testDecodeDateTimeAsEpochMillis()
+    {
+        ConfigSource config = config().set("date_time_output", "epoch_millis");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(true, task);
+
+        BsonDocument document = new BsonDocument("t", new BsonDateTime(1422354229000L));
+        Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        assertEquals("{\"t\":1422354229000}", value.toJson());
+    }
+
+    @Test
+    public void testDecodeWithTypeMapping()
+    {
+        ConfigSource config = config().set("type_mapping", ImmutableMap.of("decimal128", "extended_json", "timestamp", "extended_json", "object_id", "extended_json"));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(true, task);
+
+        BsonDocument document = new BsonDocument("d", new BsonDecimal128(Decimal128.parse("1.10")))
+                .append("t", new BsonTimestamp(1463991177, 4))
+                .append("o", new BsonObjectId(new ObjectId("55eae883689a08361045d652")))
+                .append("m", new BsonMaxKey());
+        Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        assertEquals("{\"d\":{\"$numberDecimal\":\"1.10\"},\"t\":{\"$timestamp\":{\"t\":1463991177,\"i\":4}},"
+                + "\"o\":{\"$oid\":\"55eae883689a08361045d652\"},\"m\":{\"$maxKey\":1}}", value.toJson());
+    }
+
+    @Test
+    public void testDecodeUndefinedWithTypeMapping()
+    {
+        BsonDocument document = new BsonDocument("a", new BsonInt32(1)).append("u", new BsonUndefined());
+        Map<String, String> expected = ImmutableMap.of(
+                "unsupported", "{\"a\":1}",
+                "native", "{\"a\":1,\"u\":null}",
+                "extended_json", "{\"a\":1,\"u\":{\"$undefined\":true}}");
+        for (Map.Entry<String, String> mapping : expected.entrySet()) {
+            // Unsupported by default, as it was before type_mapping
+            ConfigSource config = mapping.getKey().equals("unsupported") ? config() : config().set("type_mapping", ImmutableMap.of("undefined", mapping.getKey()));
+            final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+            ValueCodec codec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+
+            Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+            assertEquals(mapping.getValue(), value.toJson());
+        }
+    }
+
+    @Test(expected = ConfigException.class)
+    public void checkInvalidTypeMapping()
+    {
+        ConfigSource config = config().set("type_mapping", ImmutableMap.of("document", "string"));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        new ValueCodec(true, task);
+    }
+
+    @Test
+    public void testDecodeWithUnsupportedValuePolicies()
+    {
+        BsonDocument document = BsonDocument.parse("{\"a\": 1, \"m\": {\"$maxKey\": 1}, \"l\": [1, {\"$maxKey\": 1}], \"d\": {\"m\": {\"$maxKey\": 1}, \"b\": 2}}");
+        Map<String, String> expected = ImmutableMap.of(
+                "drop_field", "{\"a\":1,\"d\":{\"b\":2}}",
+                "null_field", "{\"a\":1,\"m\":null,\"l\":null,\"d\":{\"m\":null,\"b\":2}}");
+        for (Map.Entry<String, String> policy : expected.entrySet()) {
+            ConfigSource config = config()
+                    .set("type_mapping", ImmutableMap.of("max_key", "unsupported"))
+                    .set("on_unsupported_value", policy.getKey());
+            final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+            ValueCodec codec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+
+            Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+            assertEquals(policy.getValue(), value.toJson());
+            assertEquals(Long.valueOf(2), codec.getUnsupportedValues().get("m").get(BsonType.MAX_KEY));
+            assertEquals(Long.valueOf(1), codec.getUnsupportedValues().get("l").get(BsonType.MAX_KEY));
+        }
+
+        ConfigSource config = config()
+                .set("type_mapping", ImmutableMap.of("max_key", "unsupported"))
+                .set("on_unsupported_value", "drop_document");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        assertNull(codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build()));
+        Value next = codec.decode(new BsonDocumentReader(BsonDocument.parse("{\"a\": 2}")), DecoderContext.builder().build());
+        assertEquals("{\"a\":2}", next.toJson());
+        assertEquals(2, codec.getProcessedRecordCount());
+    }
+
+    @Test(expected = ValueCodec.UnknownTypeFoundException.class)
+    public void testDecodeWithUnsupportedValueFail()
+    {
+        ConfigSource config = config()
+                .set("type_mapping", ImmutableMap.of("max_key", "unsupported"))
+                .set("on_unsupported_value", "fail");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec codec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        codec.decode(new BsonDocumentReader(new BsonDocument("m", new BsonMaxKey())), DecoderContext.builder().build());
+    }
+
+    @Test
+    public void testTrackIncrementalFieldsOfRawDocuments()
+    {
+        ConfigSource config = config().set("incremental_field", Arrays.asList("t", "s", "d"));
+        List<RawBsonDocument> documents = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            BsonDocument document = new BsonDocument("t", new BsonTimestamp(1463991177, i))
+                    .append("s", new BsonString(String.join("", Collections.nCopies(i * 20, "s"))))
+                    .append("d", new BsonDocument("x", new BsonInt32(i)));
+            documents.add(new RawBsonDocument(document, new BsonDocumentCodec()));
+        }
+
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec valueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        for (RawBsonDocument document : documents) {
+            assertEquals("{\"t\":1463991177,\"s\":\"" + document.getString("s").getValue() + "\",\"d\":{\"x\":" + document.getDocument("d").getInt32("x").getValue() + "}}",
+                    document.decode(valueCodec).toJson());
+        }
+        assertEquals(new HashMap<>(documents.get(1)), valueCodec.getLastRecord());
+
+        // "d" is read as a JSON column, a column of its field and the tracked value
+        final PluginTask columnTask = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config.deepCopy().set("columns", Arrays.asList(
+                ImmutableMap.of("name", "d", "type", "json"),
+                ImmutableMap.of("name", "x", "type", "long", "path", "d.x"),
+                ImmutableMap.of("name", "t", "type", "timestamp"))), PluginTask.class);
+        ValueCodec columnValueCodec = new ValueCodec(columnTask.getStopOnInvalidRecord(), columnTask);
+        ColumnCodec codec = new ColumnCodec(columnTask, columnValueCodec);
+        for (RawBsonDocument document : documents) {
+            Object[] row = document.decode(codec);
+            assertEquals("{\"x\":" + document.getDocument("d").getInt32("x").getValue() + "}", ((Value) row[0]).toJson());
+            assertEquals(Long.valueOf(document.getDocument("d").getInt32("x").getValue()), row[1]);
+            assertEquals(Instant.ofEpochSecond(1463991177), row[2]);
+        }
+        assertEquals(new HashMap<>(documents.get(1)), columnValueCodec.getLastRecord());
+    }
+
+    @Test
+    public void testTrackIncrementalFieldsOfDroppedDocuments()
+    {
+        ConfigSource config = config()
+                .set("incremental_field", Arrays.asList("n"))
+                .set("type_mapping", ImmutableMap.of("max_key", "unsupported"))
+                .set("on_unsupported_value", "drop_document");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        List<BsonDocument> documents = Arrays.asList(
+                BsonDocument.parse("{\"n\": 10}"),
+                BsonDocument.parse("{\"n\": 20, \"m\": {\"$maxKey\": 1}}"));
+
+        ValueCodec valueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        for (BsonDocument document : documents) {
+            valueCodec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        }
+        assertEquals(new BsonInt32(10), valueCodec.getLastRecord().get("n"));
+
+        final PluginTask columnTask = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config.deepCopy().set("columns", Arrays.asList(
+                ImmutableMap.of("name", "n", "type", "long"),
+                ImmutableMap.of("name", "m", "type", "json"))), PluginTask.class);
+        ValueCodec columnValueCodec = new ValueCodec(columnTask.getStopOnInvalidRecord(), columnTask);
+        ColumnCodec codec = new ColumnCodec(columnTask, columnValueCodec);
+        for (BsonDocument document : documents) {
+            codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        }
+        assertEquals(new BsonInt32(10), columnValueCodec.getLastRecord().get("n"));
+    }
+
+    @Test
+    public void testDecodeSpecialDecimal128Columns()
+    {
+        ConfigSource config = config().set("columns", Arrays.asList(
+                ImmutableMap.of("name", "nan", "type", "double"),
+                ImmutableMap.of("name", "inf", "type", "double"),
+                ImmutableMap.of("name", "neg_inf", "type", "double"),
+                ImmutableMap.of("name", "neg_zero", "type", "double"),
+                ImmutableMap.of("name", "nan_long", "type", "long"),
+                ImmutableMap.of("name", "neg_zero_long", "type", "long")));
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        ValueCodec valueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        ColumnCodec codec = new ColumnCodec(task, valueCodec);
+
+        BsonDocument document = new BsonDocument("nan", new BsonDecimal128(Decimal128.NaN))
+                .append("inf", new BsonDecimal128(Decimal128.POSITIVE_INFINITY))
+                .append("neg_inf", new BsonDecimal128(Decimal128.NEGATIVE_INFINITY))
+                .append("neg_zero", new BsonDecimal128(Decimal128.NEGATIVE_ZERO))
+                .append("nan_long", new BsonDecimal128(Decimal128.NaN))
+                .append("neg_zero_long", new BsonDecimal128(Decimal128.NEGATIVE_ZERO));
+        Object[] row = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        assertEquals(Double.NaN, row[0]);
+        assertEquals(Double.POSITIVE_INFINITY, row[1]);
+        assertEquals(Double.NEGATIVE_INFINITY, row[2]);
+        assertEquals(-0.0, row[3]);
+        // NaN can't be a long, so it's handled by on_unsupported_value instead of failing the task
+        assertNull(row[4]);
+        assertEquals(Long.valueOf(1), valueCodec.getUnsupportedValues().get("nan_long").get(BsonType.DECIMAL128));
+        assertEquals(0L, row[5]);
+    }
+
+    @Test
+    public void testDecodeDoubleLongColumns()
+    {
+        Map<String, Double> values = new LinkedHashMap<>();
+        values.put("fraction", 1.9);
+        values.put("negative_fraction", -1.9);
+        values.put("min", -0x1p63);
+        values.put("nan", Double.NaN);
+        values.put("inf", Double.POSITIVE_INFINITY);
+        values.put("neg_inf", Double.NEGATIVE_INFINITY);
+        values.put("too_large", 0x1p63);
+        List<Map<String, String>> columns = new ArrayList<>();
+        BsonDocument document = new BsonDocument();
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            columns.add(ImmutableMap.of("name", value.getKey(), "type", "long"));
+            document.append(value.getKey(), new BsonDouble(value.getValue()));
+        }
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config().set("columns", columns), PluginTask.class);
+        ValueCodec valueCodec = new ValueCodec(task.getStopOnInvalidRecord(), task);
+        ColumnCodec codec = new ColumnCodec(task, valueCodec);
+
+        Object[] row = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        assertEquals(1L, row[0]);
+        assertEquals(-1L, row[1]);
+        assertEquals(Long.MIN_VALUE, row[2]);
+        // Not written as 0 or clamped values, but handled by on_unsupported_value
+        for (int i = 3; i < row.length; i++) {
+            assertNull(row[i]);
+        }
+        assertEquals(4, valueCodec.getUnsupportedValues().size());
+        assertEquals(Long.valueOf(1), valueCodec.getUnsupportedValues().get("nan").get(BsonType.DOUBLE));
+    }
+
+    @Test
+    public void testDecodeSnapshotEnvelope()
+    {
+        ConfigSource config = config().set("mode", "snapshot_change_stream");
+        final PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        EnvelopeCodec<Value> codec = new EnvelopeCodec<>(new ValueCodec(true, task), new BsonTimestamp(1463991177, 4));
+
+        BsonDocument document = BsonDocument.parse("{\"_id\": 1, \"a\": \"b\"}");
+        Value value = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        // clusterTime keeps the increment, so that it's ordered against change events of the same second
+        assertEquals("{\"operationType\":\"snapshot\",\"clusterTime\":6287794226847547396,\"documentKey\":{\"_id\":1},\"fullDocument\":{\"_id\":1,\"a\":\"b\"}}", value.toJson());
+
+        RawBsonDocument event = new RawBsonDocument(BsonDocument.parse("{\"_id\": {\"_data\": \"1\"}, \"operationType\": \"insert\","
+                + " \"clusterTime\": {\"$timestamp\": {\"t\": 1463991177, \"i\": 5}}, \"documentKey\": {\"_id\": 2}}"), new BsonDocumentCodec());
+        Value change = new ChangeStream(task).toRecord(event).decode(new ValueCodec(true, task));
+        assertEquals("{\"_id\":{\"_data\":\"1\"},\"operationType\":\"insert\",\"clusterTime\":6287794226847547397,\"documentKey\":{\"_id\":2}}", change.toJson());
+    }
+
+    @Test
+    public void testQueryPlan()
+    {
+        BsonDocument query = BsonDocument.parse("{\"int32_field\": {\"$gte\": 1}}");
+        BsonDocument projection = BsonDocument.parse("{\"_id\": 0}");
+        BsonDocument sort = BsonDocument.parse("{\"int32_field\": -1}");
+        List<Partition> partitions = Arrays.asList(new Partition("{\"_id\": {\"$lt\": 10}}"), new Partition("{\"_id\": {\"$gte\": 10}}"));
+
+        BsonDocument hint = BsonDocument.parse("{\"int32_field\": 1}");
+
+        QueryPlan plan = QueryPlan.decode(QueryPlan.build(query, projection, sort, Optional.of(hint), Optional.<BsonDocument>empty(), Optional.<BsonDocument>empty(), Optional.<List<BsonDocument>>empty(), partitions).encode());
+        assertEquals(query, plan.getQuery());
+        assertEquals(projection, plan.getProjection());
+        assertEquals(sort, plan.getSort());
+        assertEquals(hint, plan.getHint().get());
+        assertEquals(Optional.empty(), plan.getPipeline());
+        assertEquals(BsonDocument.parse("{\"_id\": {\"$gte\": 10}}"), plan.getPartitionFilter(1).get());
+        assertEquals(Optional.empty(), plan.getPartitionFilter(2));
+    }
+
     @Test
     public void testValidateJsonField() throws Exception
     {
@@ -800,30 +1925,45 @@ public class TestMongodbInputPlugin
         }
     }
 
-    private void createCollection(PluginTask task, String collectionName) throws Exception
+    private List<Long> getSortedLongValues(Schema schema, MockPageOutput output, String fieldName) throws Exception
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        List<Long> values = new ArrayList<>();
+        for (Object[] record : Pages.toObjects(schema, output.pages)) {
+            values.add(mapper.readTree(record[0].toString()).get(fieldName).asLong());
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    private MongoClientCache.Lease connect(PluginTask task) throws Exception
     {
-        Method method = MongodbInputPlugin.class.getDeclaredMethod("connect", PluginTask.class);
+        Method method = MongodbInputPlugin.class.getDeclaredMethod("connect", PluginTask.class, Optional.class);
         method.setAccessible(true);
-        MongoDatabase db = (MongoDatabase) method.invoke(plugin, task);
-        db.createCollection(collectionName);
+        return (MongoClientCache.Lease) method.invoke(plugin, task, Optional.empty());
+    }
+
+    private void createCollection(PluginTask task, String collectionName) throws Exception
+    {
+        try (MongoClientCache.Lease lease = connect(task)) {
+            lease.getDatabase().createCollection(collectionName);
+        }
     }
 
     private void dropCollection(PluginTask task, String collectionName) throws Exception
     {
-        Method method = MongodbInputPlugin.class.getDeclaredMethod("connect", PluginTask.class);
-        method.setAccessible(true);
-        MongoDatabase db = (MongoDatabase) method.invoke(plugin, task);
-        MongoCollection collection = db.getCollection(collectionName);
-        collection.drop();
+        try (MongoClientCache.Lease lease = connect(task)) {
+            MongoCollection collection = lease.getDatabase().getCollection(collectionName);
+            collection.drop();
+        }
     }
 
     private void insertDocument(PluginTask task, List<Document> documents) throws Exception
     {
-        Method method = MongodbInputPlugin.class.getDeclaredMethod("connect", PluginTask.class);
-        method.setAccessible(true);
-        MongoDatabase db = (MongoDatabase) method.invoke(plugin, task);
-        MongoCollection collection = db.getCollection(task.getCollection());
-        collection.insertMany(documents);
+        try (MongoClientCache.Lease lease = connect(task)) {
+            MongoCollection collection = lease.getDatabase().getCollection(task.getCollection());
+            collection.insertMany(documents);
+        }
     }
 
     private DateFormat getUTCDateFormat()